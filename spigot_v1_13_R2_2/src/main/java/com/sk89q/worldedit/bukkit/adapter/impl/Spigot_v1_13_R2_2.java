@@ -22,11 +22,9 @@
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.blocks.BaseItemStack;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
-import com.sk89q.worldedit.bukkit.BukkitWorld;
 import com.sk89q.worldedit.bukkit.adapter.BukkitImplAdapter;
 import com.sk89q.worldedit.entity.BaseEntity;
 import com.sk89q.worldedit.extension.platform.Watchdog;
@@ -48,6 +46,7 @@
 import com.sk89q.worldedit.util.concurrency.LazyReference;
 import com.sk89q.worldedit.util.formatting.text.Component;
 import com.sk89q.worldedit.util.formatting.text.TranslatableComponent;
+import com.sk89q.worldedit.util.io.file.SafeFiles;
 import com.sk89q.worldedit.util.nbt.BinaryTag;
 import com.sk89q.worldedit.util.nbt.ByteArrayBinaryTag;
 import com.sk89q.worldedit.util.nbt.ByteBinaryTag;
@@ -66,8 +65,12 @@
 import com.sk89q.worldedit.world.RegenOptions;
 import com.sk89q.worldedit.world.block.BaseBlock;
 import com.sk89q.worldedit.world.block.BlockState;
+import com.sk89q.worldedit.world.block.BlockStateHolder;
 import com.sk89q.worldedit.world.block.BlockType;
 import com.sk89q.worldedit.world.item.ItemType;
+import com.sk89q.worldedit.world.item.ItemTypes;
+import com.sk89q.worldedit.world.registry.LegacyMapper;
+import net.minecraft.server.v1_13_R2.AxisAlignedBB;
 import net.minecraft.server.v1_13_R2.Block;
 import net.minecraft.server.v1_13_R2.BlockPosition;
 import net.minecraft.server.v1_13_R2.BlockStateBoolean;
@@ -78,6 +81,7 @@
 import net.minecraft.server.v1_13_R2.Blocks;
 import net.minecraft.server.v1_13_R2.Chunk;
 import net.minecraft.server.v1_13_R2.Entity;
+import net.minecraft.server.v1_13_R2.EntityHuman;
 import net.minecraft.server.v1_13_R2.EntityTypes;
 import net.minecraft.server.v1_13_R2.EnumDirection;
 import net.minecraft.server.v1_13_R2.IBlockData;
@@ -128,29 +132,54 @@
 import org.spigotmc.SpigotConfig;
 import org.spigotmc.WatchdogThread;
 
-import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalInt;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public final class Spigot_v1_13_R2_2 implements BukkitImplAdapter {
 
+    // Data versions to fix some data from at startup, so the first schematic from them doesn't stall the server
+    private static final int[] DATA_FIXER_WARM_UP_VERSIONS =
+        Arrays.stream(System.getProperty("worldedit.dataFixer.warmUpVersions", "1343,1631,2230").split(","))
+            .map(String::trim)
+            .filter(version -> !version.isEmpty())
+            .mapToInt(Integer::parseInt)
+            .toArray();
+
+    private static final Map<EntityTypes<?>, String> ENTITY_IDS = new ConcurrentHashMap<>();
+    private static final Map<ItemType, Item> ITEMS = new ConcurrentHashMap<>();
+    private static final Map<Item, ItemType> ITEM_TYPES = new ConcurrentHashMap<>();
+
     private final Logger logger = Logger.getLogger(getClass().getCanonicalName());
+    private final LazyReference<LegacyMappings_v1_13_R2_2> legacyMappings =
+        LazyReference.from(() -> new LegacyMappings_v1_13_R2_2(LegacyMapper.getInstance()));
 
     private final Field nbtListTagListField;
     private final Field serverWorldsField;
+    private final Field craftItemStackHandleField;
     private final Method nbtCreateTagMethod;
     private final Watchdog watchdog;
 
@@ -169,6 +198,10 @@ public Spigot_v1_13_R2_2() throws NoSuchFieldException, NoSuchMethodException {
         serverWorldsField = CraftServer.class.getDeclaredField("worlds");
         serverWorldsField.setAccessible(true);
 
+        // The stack a CraftItemStack wraps
+        craftItemStackHandleField = CraftItemStack.class.getDeclaredField("handle");
+        craftItemStackHandleField.setAccessible(true);
+
         // The method to create an NBTBase tag given its type ID
         nbtCreateTagMethod = NBTBase.class.getDeclaredMethod("createTag", byte.class);
         nbtCreateTagMethod.setAccessible(true);
@@ -176,7 +209,19 @@ public Spigot_v1_13_R2_2() throws NoSuchFieldException, NoSuchMethodException {
         // Spigot broke names mid-version, this is a test to see if it's before or after.
         new NBTTagString("test").asString();
 
-        new DataConverters_1_13_R2_2(CraftMagicNumbers.INSTANCE.getDataVersion(), this).build(ForkJoinPool.commonPool());
+        DataConverters_1_13_R2_2 dataFixer = new DataConverters_1_13_R2_2(CraftMagicNumbers.INSTANCE.getDataVersion(), this);
+        dataFixer.build(ForkJoinPool.commonPool());
+        if (DATA_FIXER_WARM_UP_VERSIONS.length > 0) {
+            long warmUpStart = System.nanoTime();
+            dataFixer.warmUp(ForkJoinPool.commonPool(), DATA_FIXER_WARM_UP_VERSIONS).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Failed to warm up the data fixer", e);
+                } else {
+                    logger.info("Warmed up the data fixer in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmUpStart) + "ms");
+                }
+            });
+        }
 
         Watchdog watchdog;
         try {
@@ -202,6 +247,91 @@ public DataFixer getDataFixer() {
         return DataConverters_1_13_R2_2.INSTANCE;
     }
 
+    /**
+     * Get the counts, timings and allocation estimates of every data fix
+     * since the server started.
+     *
+     * @return the metrics
+     */
+    public DataFixerMetrics_v1_13_R2_2 getDataFixerMetrics() {
+        return DataConverters_1_13_R2_2.INSTANCE.getMetrics();
+    }
+
+    /**
+     * Fix up many values of the same type and data version at once.
+     *
+     * <p>Large batches are fixed in parallel on the common fork/join pool,
+     * which is much faster than calling {@link DataFixer#fixUp} in a loop for
+     * the thousands of block entities of an old schematic.</p>
+     *
+     * @param type the type of the values
+     * @param originals the values to fix
+     * @param srcVer the data version of the values
+     * @param <T> the type of the values
+     * @return the fixed values, in the same order
+     */
+    public <T> List<T> fixUpAll(DataFixer.FixType<T> type, List<T> originals, int srcVer) {
+        return DataConverters_1_13_R2_2.INSTANCE.fixUpAll(type, originals, srcVer);
+    }
+
+    /**
+     * Fix up only the parts of a chunk that can affect the given region.
+     *
+     * <p>Sections too far above or below the region, and entities and block
+     * entities outside of it, are dropped before fixing. This is meant for
+     * restoring a small area from an old snapshot.</p>
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return the fixed chunk data
+     */
+    public CompoundBinaryTag fixChunkWithin(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return DataConverters_1_13_R2_2.INSTANCE.fixChunkWithin(chunk, srcVer, region);
+    }
+
+    /**
+     * Fix up the parts of a chunk that can affect the given region on the
+     * common fork/join pool, so that chunks can be fixed while more are read.
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return a future of the fixed chunk data
+     * @see #fixChunkWithin(CompoundBinaryTag, int, Region)
+     */
+    public CompletableFuture<CompoundBinaryTag> fixChunkWithinAsync(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return DataConverters_1_13_R2_2.INSTANCE.fixChunkWithinAsync(chunk, srcVer, region);
+    }
+
+    /**
+     * Get the current block state of a legacy block id and data value.
+     *
+     * <p>The legacy tables are built on first use.</p>
+     *
+     * @param id the legacy block id
+     * @param data the legacy data value
+     * @return the block state, or null if there is none
+     */
+    @Nullable
+    public BlockState getLegacyBlock(int id, int data) {
+        return legacyMappings.getValue().getBlock(id, data);
+    }
+
+    /**
+     * Get the current item type of a legacy item id and damage value.
+     *
+     * <p>The legacy tables are built on first use.</p>
+     *
+     * @param id the legacy item id
+     * @param damage the legacy damage value
+     * @return the item type, or null if there is none
+     */
+    @Nullable
+    public ItemType getLegacyItem(int id, int damage) {
+        return legacyMappings.getValue().getItem(id, damage);
+    }
+
     /**
      * Read the given NBT data into the given tile entity.
      *
@@ -230,9 +360,12 @@ private static void readTileEntityIntoTag(TileEntity tileEntity, NBTTagCompound
      */
     @Nullable
     private static String getEntityId(Entity entity) {
-        MinecraftKey minecraftkey = EntityTypes.getName(entity.getBukkitEntity().getHandle().P());
+        // computeIfAbsent doesn't store null, so unknown types are looked up every time
+        return ENTITY_IDS.computeIfAbsent(entity.P(), type -> {
+            MinecraftKey minecraftkey = EntityTypes.getName(type);
 
-        return minecraftkey == null ? null : minecraftkey.toString();
+            return minecraftkey == null ? null : minecraftkey.toString();
+        });
     }
 
     /**
@@ -272,7 +405,13 @@ private static Block getBlockFromType(BlockType blockType) {
     }
 
     private static Item getItemFromType(ItemType itemType) {
-        return IRegistry.ITEM.get(MinecraftKey.a(itemType.getId()));
+        return ITEMS.computeIfAbsent(itemType, type -> IRegistry.ITEM.get(MinecraftKey.a(type.getId())));
+    }
+
+    @Nullable
+    private static ItemType getTypeFromItem(Item item) {
+        // computeIfAbsent doesn't store null, so unknown items are looked up every time
+        return ITEM_TYPES.computeIfAbsent(item, type -> ItemTypes.get(IRegistry.ITEM.getKey(type).toString()));
     }
 
     @Override
@@ -379,6 +518,158 @@ public BaseEntity getEntity(org.bukkit.entity.Entity entity) {
         }
     }
 
+    /**
+     * Spawn many entities at once.
+     *
+     * <p>Their NBT is converted on worker threads first. The entities are
+     * then added chunk by chunk, so that every chunk is loaded just once.
+     * Must be called from the main thread.</p>
+     *
+     * @param world the world
+     * @param locations the location of each entity
+     * @param states the state of each entity
+     * @return the entities that were created
+     */
+    public List<org.bukkit.entity.Entity> createEntities(org.bukkit.World world, List<Location> locations, List<BaseEntity> states) {
+        checkNotNull(world);
+        checkArgument(locations.size() == states.size(), "Expected one location per entity");
+
+        WorldServer worldServer = ((CraftWorld) world).getHandle();
+
+        // converting doesn't touch the world, so do it for every entity at once
+        List<NBTTagCompound> tags = states.parallelStream().map(state -> {
+            CompoundBinaryTag nativeTag = state.getNbt();
+            if (nativeTag == null) {
+                return null;
+            }
+            NBTTagCompound tag = (NBTTagCompound) fromNative(nativeTag);
+            for (String name : Constants.NO_COPY_ENTITY_NBT_FIELDS) {
+                tag.remove(name);
+            }
+            return tag;
+        }).collect(Collectors.toList());
+
+        Map<Long, List<Integer>> byChunk = new LinkedHashMap<>();
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            long chunkKey = ((long) (location.getBlockX() >> 4) << 32) | ((location.getBlockZ() >> 4) & 0xFFFFFFFFL);
+            byChunk.computeIfAbsent(chunkKey, k -> new ArrayList<>()).add(i);
+        }
+
+        List<org.bukkit.entity.Entity> created = new ArrayList<>(locations.size());
+        for (Map.Entry<Long, List<Integer>> chunk : byChunk.entrySet()) {
+            worldServer.getChunkAt((int) (chunk.getKey() >> 32), (int) chunk.getKey().longValue());
+            for (int i : chunk.getValue()) {
+                Entity createdEntity = createEntityFromId(states.get(i).getType().getId(), worldServer);
+                if (createdEntity == null) {
+                    continue;
+                }
+                NBTTagCompound tag = tags.get(i);
+                if (tag != null) {
+                    readTagIntoEntity(tag, createdEntity);
+                }
+
+                Location location = locations.get(i);
+                createdEntity.setLocation(location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch());
+
+                worldServer.addEntity(createdEntity, SpawnReason.CUSTOM);
+                created.add(createdEntity.getBukkitEntity());
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Find every entity in a region.
+     *
+     * <p>The entities are found through the world's own entity lookup. Their
+     * state isn't read, use {@link #getEntity(org.bukkit.entity.Entity)} for
+     * the entities that need it.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @return the entities in the region, players excluded
+     */
+    public List<org.bukkit.entity.Entity> findEntities(org.bukkit.World world, Region region) {
+        checkNotNull(world);
+        checkNotNull(region);
+
+        List<Entity> found = getEntitiesIn(((CraftWorld) world).getHandle(), region);
+        List<org.bukkit.entity.Entity> entities = new ArrayList<>(found.size());
+        for (Entity entity : found) {
+            entities.add(entity.getBukkitEntity());
+        }
+        return entities;
+    }
+
+    /**
+     * Capture the state of every entity in a region in one pass.
+     *
+     * <p>Only saving the entities happens on the calling thread, which must
+     * be the main thread. Converting their data to WorldEdit's NBT happens in
+     * the background, and is waited on when the data is first used.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @return the state of every entity in the region, players excluded
+     */
+    public Map<org.bukkit.entity.Entity, BaseEntity> getEntities(org.bukkit.World world, Region region) {
+        checkNotNull(world);
+        checkNotNull(region);
+
+        Map<org.bukkit.entity.Entity, BaseEntity> entities = new LinkedHashMap<>();
+        for (Entity mcEntity : getEntitiesIn(((CraftWorld) world).getHandle(), region)) {
+            String id = getEntityId(mcEntity);
+            if (id == null) {
+                continue;
+            }
+            NBTTagCompound tag = new NBTTagCompound();
+            readEntityIntoTag(mcEntity, tag);
+            CompletableFuture<CompoundBinaryTag> nbt =
+                CompletableFuture.supplyAsync(() -> (CompoundBinaryTag) toNative(tag), ForkJoinPool.commonPool());
+            entities.put(mcEntity.getBukkitEntity(), new BaseEntity(com.sk89q.worldedit.world.entity.EntityTypes.get(id), LazyReference.from(nbt::join)));
+        }
+        return entities;
+    }
+
+    /**
+     * Remove every entity of the given types in a region.
+     *
+     * <p>The entities are found through the world's own entity lookup, without
+     * creating a Bukkit entity for each of them. Players are never removed.
+     * Must be called from the main thread.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @param filter the types of entity to remove
+     * @return the number of entities removed
+     */
+    public int removeEntities(org.bukkit.World world, Region region, Predicate<com.sk89q.worldedit.world.entity.EntityType> filter) {
+        checkNotNull(world);
+        checkNotNull(region);
+        checkNotNull(filter);
+
+        int removed = 0;
+        for (Entity entity : getEntitiesIn(((CraftWorld) world).getHandle(), region)) {
+            String id = getEntityId(entity);
+            com.sk89q.worldedit.world.entity.EntityType type = id == null ? null : com.sk89q.worldedit.world.entity.EntityTypes.get(id);
+            if (type == null || !filter.test(type)) {
+                continue;
+            }
+            entity.die();
+            removed++;
+        }
+        return removed;
+    }
+
+    private static List<Entity> getEntitiesIn(WorldServer world, Region region) {
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        AxisAlignedBB bounds = new AxisAlignedBB(min.getX(), min.getY(), min.getZ(), max.getX() + 1, max.getY() + 1, max.getZ() + 1);
+        return world.getEntities((Entity) null, bounds,
+            entity -> !(entity instanceof EntityHuman) && region.contains(BlockVector3.at(entity.locX, entity.locY, entity.locZ)));
+    }
+
     @Nullable
     @Override
     public org.bukkit.entity.Entity createEntity(Location location, BaseEntity state) {
@@ -480,28 +771,50 @@ public boolean canPlaceAt(org.bukkit.World world, BlockVector3 position, BlockSt
 
     @Override
     public org.bukkit.inventory.ItemStack adapt(BaseItemStack item) {
-        ItemStack stack = new ItemStack(IRegistry.ITEM.get(MinecraftKey.a(item.getType().getId())), item.getAmount());
+        ItemStack stack = new ItemStack(getItemFromType(item.getType()), item.getAmount());
         stack.setTag(((NBTTagCompound) fromNative(item.getNbt())));
         return CraftItemStack.asCraftMirror(stack);
     }
 
     @Override
     public BaseItemStack adapt(org.bukkit.inventory.ItemStack itemStack) {
-        final ItemStack nmsStack = CraftItemStack.asNMSCopy(itemStack);
-        final BaseItemStack weStack = new BaseItemStack(BukkitAdapter.asItemType(itemStack.getType()), itemStack.getAmount());
-        weStack.setNbt(((CompoundBinaryTag) toNative(nmsStack.getTag())));
-        return weStack;
+        ItemStack nmsStack = getHandle(itemStack);
+        final NBTTagCompound tag;
+        if (nmsStack != null) {
+            // The stack may be in an inventory, so only its tag is copied
+            tag = nmsStack.getTag() == null ? null : nmsStack.getTag().clone();
+        } else {
+            nmsStack = CraftItemStack.asNMSCopy(itemStack);
+            tag = nmsStack.getTag();
+        }
+        ItemType type = getTypeFromItem(nmsStack.getItem());
+        if (type == null) {
+            type = BukkitAdapter.asItemType(itemStack.getType());
+        }
+        return new BaseItemStack(type, tag == null ? null : LazyReference.from(() -> (CompoundBinaryTag) toNative(tag)), itemStack.getAmount());
+    }
+
+    @Nullable
+    private ItemStack getHandle(org.bukkit.inventory.ItemStack itemStack) {
+        if (itemStack instanceof CraftItemStack) {
+            try {
+                return (ItemStack) craftItemStackHandleField.get(itemStack);
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return null;
     }
 
     @Override
     public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent extent, RegenOptions options) {
         WorldServer originalWorld = ((CraftWorld) bukkitWorld).getHandle();
 
-        File saveFolder = Files.createTempDir();
-        // register this just in case something goes wrong
-        // normally it should be deleted at the end of this method
-        saveFolder.deleteOnExit();
-        saveFolder.deleteOnExit();
+        Path saveFolder;
+        try {
+            saveFolder = Files.createTempDirectory("WorldEditWorldGen");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         try {
             Environment env = bukkitWorld.getEnvironment();
             ChunkGenerator gen = bukkitWorld.getGenerator();
@@ -510,7 +823,7 @@ public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent ex
             WorldData newWorldData = new WorldData(originalWorld.worldData.a((NBTTagCompound) null),
                     server.dataConverterManager, CraftMagicNumbers.INSTANCE.getDataVersion(), null);
             newWorldData.checkName("worldeditregentempworld");
-            WorldNBTStorage saveHandler = new WorldNBTStorage(saveFolder,
+            WorldNBTStorage saveHandler = new WorldNBTStorage(saveFolder.toFile(),
                     originalWorld.getDataManager().getDirectory().getName(), server, server.dataConverterManager);
             try (WorldServer freshWorld = new WorldServer(server, saveHandler, new PersistentCollection(saveHandler),
                     newWorldData, originalWorld.worldProvider.getDimensionManager(),
@@ -525,25 +838,54 @@ public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent ex
                     freshWorld.getChunkAt(chunk.getBlockX(), chunk.getBlockZ());
                 }
 
-                CraftWorld craftWorld = freshWorld.getWorld();
-                BukkitWorld from = new BukkitWorld(craftWorld);
-                for (BlockVector3 vec : region) {
-                    extent.setBlock(vec, from.getFullBlock(vec));
+                for (BlockVector2 chunk : region.getChunks()) {
+                    copyChunk(region, extent, freshWorld.getChunkAt(chunk.getBlockX(), chunk.getBlockZ()));
                 }
             }
         } catch (WorldEditException e) {
             throw new RuntimeException(e);
         } finally {
-            saveFolder.delete();
             try {
                 Map<String, org.bukkit.World> map = (Map<String, org.bukkit.World>) serverWorldsField.get(Bukkit.getServer());
                 map.remove("worldeditregentempworld");
             } catch (IllegalAccessException ignored) {
             }
+            try {
+                SafeFiles.tryHardToDeleteDir(saveFolder);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to delete the temporary regen world", e);
+            }
         }
         return true;
     }
 
+    private void copyChunk(Region region, Extent extent, Chunk chunk) throws WorldEditException {
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        int minX = Math.max(min.getBlockX(), chunk.locX << 4);
+        int minZ = Math.max(min.getBlockZ(), chunk.locZ << 4);
+        int maxX = Math.min(max.getBlockX(), (chunk.locX << 4) + 15);
+        int maxZ = Math.min(max.getBlockZ(), (chunk.locZ << 4) + 15);
+        for (int y = min.getBlockY(); y <= max.getBlockY(); y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    BlockVector3 vec = BlockVector3.at(x, y, z);
+                    if (!region.contains(vec)) {
+                        continue;
+                    }
+                    BlockStateHolder<?> state = BlockStateIdAccess.getBlockStateById(Block.getCombinedId(chunk.getBlockData(x, y, z)));
+                    TileEntity blockEntity = chunk.a(new BlockPosition(x, y, z), Chunk.EnumTileEntityState.CHECK);
+                    if (blockEntity != null) {
+                        NBTTagCompound tag = new NBTTagCompound();
+                        readTileEntityIntoTag(blockEntity, tag);
+                        state = state.toBaseBlock(((CompoundBinaryTag) toNative(tag)));
+                    }
+                    extent.setBlock(vec, state.toBaseBlock());
+                }
+            }
+        }
+    }
+
     private static final Set<SideEffect> SUPPORTED_SIDE_EFFECTS = Sets.immutableEnumSet(
             SideEffect.NEIGHBORS,
             SideEffect.LIGHTING,
@@ -0,0 +1,302 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.datafixers.util.Either;
+import com.sk89q.worldedit.math.BlockVector2;
+import net.minecraft.server.v1_14_R1.ChunkCoordIntPair;
+import net.minecraft.server.v1_14_R1.ChunkProviderServer;
+import net.minecraft.server.v1_14_R1.ChunkStatus;
+import net.minecraft.server.v1_14_R1.IAsyncTaskHandler;
+import net.minecraft.server.v1_14_R1.IChunkAccess;
+import net.minecraft.server.v1_14_R1.PlayerChunk;
+import net.minecraft.server.v1_14_R1.TicketType;
+import net.minecraft.server.v1_14_R1.WorldServer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Generates the chunks of a regen in the temporary world with a bounded number
+ * of chunks in flight.
+ *
+ * <p>A chunk is handed out once it and every requested neighbour are generated,
+ * so features that spill over chunk borders are present when it is copied.
+ * Each chunk is released as soon as it has been copied, and the temporary
+ * world's chunk map is run from {@link #poll(long)} so released chunks are
+ * actually unloaded. Whenever the heap fills up, only one chunk is generated
+ * at a time until it has drained.</p>
+ */
+final class RegenScheduler_v1_14_R4 {
+
+    private static final TicketType<ChunkCoordIntPair> REGEN_TICKET =
+        TicketType.a("worldedit_regen", Comparator.comparingLong(ChunkCoordIntPair::pair));
+
+    /**
+     * Create the worker pool used to generate chunks in regen worlds, so
+     * that regens never queue up behind the server's own world generation.
+     *
+     * @param threads the number of worker threads
+     * @return the pool
+     */
+    static ExecutorService createWorkerPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("WorldEdit Regen Worker #%d").setDaemon(true).build());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private final WorldServer world;
+    private final IAsyncTaskHandler<?> mainThreadExecutor;
+    private final Method getChunkFutureMethod;
+    private final ChunkStatus status;
+    private final int ticketLevel;
+    private final int maxInFlight;
+    private final double maxHeapUsage;
+
+    private final Set<ChunkCoordIntPair> requested = new HashSet<>();
+    private final Deque<ChunkCoordIntPair> pending = new ArrayDeque<>();
+    private final Map<ChunkCoordIntPair, CompletableFuture<IChunkAccess>> inFlight = new LinkedHashMap<>();
+    private final Map<ChunkCoordIntPair, IChunkAccess> generated = new LinkedHashMap<>();
+    private final Set<ChunkCoordIntPair> finished = new HashSet<>();
+    private final Set<ChunkCoordIntPair> handedOut = new HashSet<>();
+    private boolean unloadPending;
+
+    RegenScheduler_v1_14_R4(WorldServer world, IAsyncTaskHandler<?> mainThreadExecutor,
+                            Method getChunkFutureMethod, Collection<BlockVector2> chunks, ChunkStatus status,
+                            int maxInFlight, double maxHeapUsage) {
+        this.world = world;
+        this.mainThreadExecutor = mainThreadExecutor;
+        this.getChunkFutureMethod = getChunkFutureMethod;
+        this.status = status;
+        this.ticketLevel = 33 + ChunkStatus.a(status);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxHeapUsage = maxHeapUsage;
+
+        // Walk the chunks in Z-order, so neighbours are generated close together and only a few chunks wait
+        // on their neighbours at any time, even when the chunks come from several far apart regions
+        List<ChunkCoordIntPair> sorted = new ArrayList<>(chunks.size());
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        for (BlockVector2 chunk : chunks) {
+            sorted.add(new ChunkCoordIntPair(chunk.getX(), chunk.getZ()));
+            minX = Math.min(minX, chunk.getX());
+            minZ = Math.min(minZ, chunk.getZ());
+        }
+        int originX = minX;
+        int originZ = minZ;
+        sorted.sort(Comparator.comparingLong(pos -> mortonCode(pos.x - originX, pos.z - originZ)));
+        requested.addAll(sorted);
+        pending.addAll(sorted);
+    }
+
+    /**
+     * Check if every chunk has been generated and handed out.
+     *
+     * @return true if done
+     */
+    boolean isDone() {
+        return pending.isEmpty() && inFlight.isEmpty() && generated.isEmpty();
+    }
+
+    /**
+     * Unload the chunks released since the last poll, request more chunks if
+     * there is room, then run the temporary world's tasks until a chunk
+     * finishes generating or the time runs out.
+     *
+     * <p>Every chunk that is returned must be passed to
+     * {@link #release(ChunkCoordIntPair)} once it is no longer needed.</p>
+     *
+     * @param maxWaitNanos how long to wait for a chunk to finish
+     * @return the chunks that are ready to be copied, possibly none
+     */
+    List<IChunkAccess> poll(long maxWaitNanos) {
+        long start = System.nanoTime();
+        unloadReleased(start, maxWaitNanos);
+        submit();
+        if (!inFlight.isEmpty()) {
+            mainThreadExecutor.awaitTasks(() ->
+                inFlight.values().stream().anyMatch(CompletableFuture::isDone)
+                    || System.nanoTime() - start >= maxWaitNanos
+            );
+        }
+        collect();
+        return drainReady();
+    }
+
+    /**
+     * Release a chunk that has been handed out, once it has been copied.
+     *
+     * <p>A chunk is only handed out after every requested neighbour has
+     * finished generating, so no chunk that is still being generated needs it
+     * anymore. It is unloaded from the temporary world on the next poll.</p>
+     *
+     * @param pos the position of the chunk
+     */
+    void release(ChunkCoordIntPair pos) {
+        if (handedOut.remove(pos)) {
+            world.getChunkProvider().removeTicket(REGEN_TICKET, pos, ticketLevel, pos);
+            unloadPending = true;
+        }
+    }
+
+    /**
+     * Stop generating. Chunks that haven't been requested yet are dropped,
+     * and every chunk requested so far is released.
+     *
+     * <p>Generation that is already in progress isn't interrupted. It runs to
+     * completion in the background, and the chunk is no longer held once it
+     * is done.</p>
+     */
+    void cancel() {
+        pending.clear();
+        removeTickets(inFlight.keySet());
+        removeTickets(generated.keySet());
+        removeTickets(handedOut);
+        inFlight.clear();
+        generated.clear();
+        handedOut.clear();
+    }
+
+    private void submit() {
+        ChunkProviderServer chunkManager = world.getChunkProvider();
+        while (!pending.isEmpty() && inFlight.size() < maxInFlight) {
+            // always keep one chunk going, otherwise we'd never finish
+            if (!inFlight.isEmpty() && isHeapFull()) {
+                break;
+            }
+            ChunkCoordIntPair pos = pending.poll();
+            // hold the chunk ourselves, the ticket added by the chunk request expires with the next tick
+            chunkManager.addTicket(REGEN_TICKET, pos, ticketLevel, pos);
+            try {
+                //noinspection unchecked
+                inFlight.put(pos,
+                    ((CompletableFuture<Either<IChunkAccess, PlayerChunk.Failure>>)
+                        getChunkFutureMethod.invoke(chunkManager, pos.x, pos.z, status, true))
+                        .thenApply(either -> either.left().orElse(null))
+                );
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Couldn't load chunk for regen.", e);
+            }
+        }
+    }
+
+    private void collect() {
+        Iterator<Map.Entry<ChunkCoordIntPair, CompletableFuture<IChunkAccess>>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ChunkCoordIntPair, CompletableFuture<IChunkAccess>> entry = it.next();
+            if (!entry.getValue().isDone()) {
+                continue;
+            }
+            @Nullable
+            IChunkAccess chunk = entry.getValue().getNow(null);
+            checkState(chunk != null, "Failed to generate a chunk, regen failed.");
+            it.remove();
+            generated.put(entry.getKey(), chunk);
+            finished.add(entry.getKey());
+        }
+    }
+
+    private List<IChunkAccess> drainReady() {
+        List<IChunkAccess> ready = new ArrayList<>();
+        Iterator<Map.Entry<ChunkCoordIntPair, IChunkAccess>> it = generated.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ChunkCoordIntPair, IChunkAccess> entry = it.next();
+            if (neighboursFinished(entry.getKey())) {
+                it.remove();
+                handedOut.add(entry.getKey());
+                ready.add(entry.getValue());
+            }
+        }
+        return ready;
+    }
+
+    private boolean neighboursFinished(ChunkCoordIntPair pos) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dz = -1; dz <= 1; dz++) {
+                ChunkCoordIntPair neighbour = new ChunkCoordIntPair(pos.x + dx, pos.z + dz);
+                if (requested.contains(neighbour) && !finished.contains(neighbour)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void unloadReleased(long start, long maxNanos) {
+        if (!unloadPending) {
+            return;
+        }
+        unloadPending = false;
+        // The server doesn't tick the temporary world, so nothing else would process the removed tickets, purge
+        // the short lived tickets of the chunk requests, or unload the chunks. There are no players and no ticking
+        // chunks in it, so this is mostly the chunk map's unload pass, which stops after a few hundred chunks once
+        // the time is up.
+        world.getChunkProvider().tick(() -> System.nanoTime() - start < maxNanos);
+    }
+
+    private void removeTickets(Collection<ChunkCoordIntPair> chunks) {
+        ChunkProviderServer chunkManager = world.getChunkProvider();
+        for (ChunkCoordIntPair pos : chunks) {
+            chunkManager.removeTicket(REGEN_TICKET, pos, ticketLevel, pos);
+        }
+    }
+
+    private static long mortonCode(int x, int z) {
+        return spreadBits(x) | (spreadBits(z) << 1);
+    }
+
+    private static long spreadBits(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & 0x5555555555555555L;
+        return bits;
+    }
+
+    private boolean isHeapFull() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() * maxHeapUsage;
+    }
+}
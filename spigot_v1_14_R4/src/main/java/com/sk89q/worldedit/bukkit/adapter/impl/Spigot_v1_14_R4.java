@@ -25,12 +25,11 @@
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.blocks.BaseItem;
 import com.sk89q.worldedit.blocks.BaseItemStack;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
-import com.sk89q.worldedit.bukkit.BukkitWorld;
+import com.sk89q.worldedit.bukkit.WorldEditPlugin;
 import com.sk89q.worldedit.bukkit.adapter.BukkitImplAdapter;
 import com.sk89q.worldedit.entity.BaseEntity;
 import com.sk89q.worldedit.extension.platform.Watchdog;
@@ -40,7 +39,6 @@
 import com.sk89q.worldedit.internal.wna.WorldNativeAccess;
 import com.sk89q.worldedit.math.BlockVector2;
 import com.sk89q.worldedit.math.BlockVector3;
-import com.sk89q.worldedit.regions.CuboidRegion;
 import com.sk89q.worldedit.regions.Region;
 import com.sk89q.worldedit.registry.state.BooleanProperty;
 import com.sk89q.worldedit.registry.state.DirectionalProperty;
@@ -52,6 +50,7 @@
 import com.sk89q.worldedit.util.concurrency.LazyReference;
 import com.sk89q.worldedit.util.formatting.text.Component;
 import com.sk89q.worldedit.util.formatting.text.TranslatableComponent;
+import com.sk89q.worldedit.util.io.file.SafeFiles;
 import com.sk89q.worldedit.util.nbt.BinaryTag;
 import com.sk89q.worldedit.util.nbt.ByteArrayBinaryTag;
 import com.sk89q.worldedit.util.nbt.ByteBinaryTag;
@@ -70,9 +69,13 @@
 import com.sk89q.worldedit.world.RegenOptions;
 import com.sk89q.worldedit.world.block.BaseBlock;
 import com.sk89q.worldedit.world.block.BlockState;
+import com.sk89q.worldedit.world.block.BlockStateHolder;
 import com.sk89q.worldedit.world.block.BlockType;
 import com.sk89q.worldedit.world.block.BlockTypes;
 import com.sk89q.worldedit.world.item.ItemType;
+import com.sk89q.worldedit.world.item.ItemTypes;
+import com.sk89q.worldedit.world.registry.LegacyMapper;
+import net.minecraft.server.v1_14_R1.AxisAlignedBB;
 import net.minecraft.server.v1_14_R1.Block;
 import net.minecraft.server.v1_14_R1.BlockPosition;
 import net.minecraft.server.v1_14_R1.BlockStateBoolean;
@@ -83,16 +86,20 @@
 import net.minecraft.server.v1_14_R1.Blocks;
 import net.minecraft.server.v1_14_R1.Chunk;
 import net.minecraft.server.v1_14_R1.ChunkCoordIntPair;
+import net.minecraft.server.v1_14_R1.ChunkProviderServer;
 import net.minecraft.server.v1_14_R1.ChunkStatus;
 import net.minecraft.server.v1_14_R1.Clearable;
 import net.minecraft.server.v1_14_R1.DedicatedServer;
 import net.minecraft.server.v1_14_R1.Entity;
+import net.minecraft.server.v1_14_R1.EntityHuman;
 import net.minecraft.server.v1_14_R1.EntityTypes;
 import net.minecraft.server.v1_14_R1.EnumDirection;
 import net.minecraft.server.v1_14_R1.EnumHand;
 import net.minecraft.server.v1_14_R1.EnumInteractionResult;
+import net.minecraft.server.v1_14_R1.IAsyncTaskHandler;
 import net.minecraft.server.v1_14_R1.IBlockData;
 import net.minecraft.server.v1_14_R1.IBlockState;
+import net.minecraft.server.v1_14_R1.IChunkAccess;
 import net.minecraft.server.v1_14_R1.INamable;
 import net.minecraft.server.v1_14_R1.IRegistry;
 import net.minecraft.server.v1_14_R1.Item;
@@ -137,38 +144,92 @@
 import org.bukkit.craftbukkit.v1_14_R1.inventory.CraftItemStack;
 import org.bukkit.craftbukkit.v1_14_R1.util.CraftMagicNumbers;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
 import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.scheduler.BukkitTask;
 import org.spigotmc.SpigotConfig;
 import org.spigotmc.WatchdogThread;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalInt;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public final class Spigot_v1_14_R4 implements BukkitImplAdapter {
 
+    private static final int REGEN_WORKER_THREADS = Integer.getInteger("worldedit.regen.workerThreads",
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int REGEN_MAX_CHUNKS_IN_FLIGHT = Integer.getInteger("worldedit.regen.maxChunksInFlight", 64);
+    private static final double REGEN_MAX_HEAP_USAGE =
+        Double.parseDouble(System.getProperty("worldedit.regen.maxHeapUsage", "0.8"));
+    private static final long REGEN_TICK_BUDGET_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("worldedit.regen.tickBudgetMillis", 10));
+
+    // Data versions to fix some data from at startup, so the first schematic from them doesn't stall the server
+    private static final int[] DATA_FIXER_WARM_UP_VERSIONS =
+        Arrays.stream(System.getProperty("worldedit.dataFixer.warmUpVersions", "1343,1631,2230").split(","))
+            .map(String::trim)
+            .filter(version -> !version.isEmpty())
+            .mapToInt(Integer::parseInt)
+            .toArray();
+
+    private static final Map<EntityTypes<?>, String> ENTITY_IDS = new ConcurrentHashMap<>();
+    private static final Map<ItemType, Item> ITEMS = new ConcurrentHashMap<>();
+    private static final Map<Item, ItemType> ITEM_TYPES = new ConcurrentHashMap<>();
+
     private final Logger logger = Logger.getLogger(getClass().getCanonicalName());
+    private final LazyReference<LegacyMappings_v1_14_R4> legacyMappings =
+        LazyReference.from(() -> new LegacyMappings_v1_14_R4(LegacyMapper.getInstance()));
 
     private final Field nbtListTagListField;
     private final Field serverWorldsField;
+    private final Field craftItemStackHandleField;
+    private final Method getChunkFutureMethod;
+    private final Field chunkProviderExecutorField;
     private final Method nbtCreateTagMethod;
     private final Watchdog watchdog;
+    private final AtomicInteger regenIds = new AtomicInteger();
+    private final Queue<RegenSession> queuedRegens = new ConcurrentLinkedQueue<>();
+    @Nullable
+    private RegenSession activeRegen;
+    @Nullable
+    private BukkitTask regenTask;
+    private boolean regenDisableListenerRegistered;
 
     // ------------------------------------------------------------------------
     // Code that may break between versions of Minecraft
@@ -188,11 +249,34 @@ public Spigot_v1_14_R4() throws NoSuchFieldException, NoSuchMethodException {
         serverWorldsField = CraftServer.class.getDeclaredField("worlds");
         serverWorldsField.setAccessible(true);
 
+        // The stack a CraftItemStack wraps
+        craftItemStackHandleField = CraftItemStack.class.getDeclaredField("handle");
+        craftItemStackHandleField.setAccessible(true);
+
+        getChunkFutureMethod = ChunkProviderServer.class.getDeclaredMethod("getChunkFutureMainThread",
+            int.class, int.class, ChunkStatus.class, boolean.class);
+        getChunkFutureMethod.setAccessible(true);
+
+        chunkProviderExecutorField = ChunkProviderServer.class.getDeclaredField("serverThreadQueue");
+        chunkProviderExecutorField.setAccessible(true);
+
         // The method to create an NBTBase tag given its type ID
         nbtCreateTagMethod = NBTBase.class.getDeclaredMethod("createTag", byte.class);
         nbtCreateTagMethod.setAccessible(true);
 
-        new DataConverters_1_14_R4(CraftMagicNumbers.INSTANCE.getDataVersion(), this).build(ForkJoinPool.commonPool());
+        DataConverters_1_14_R4 dataFixer = new DataConverters_1_14_R4(CraftMagicNumbers.INSTANCE.getDataVersion(), this);
+        dataFixer.build(ForkJoinPool.commonPool());
+        if (DATA_FIXER_WARM_UP_VERSIONS.length > 0) {
+            long warmUpStart = System.nanoTime();
+            dataFixer.warmUp(ForkJoinPool.commonPool(), DATA_FIXER_WARM_UP_VERSIONS).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Failed to warm up the data fixer", e);
+                } else {
+                    logger.info("Warmed up the data fixer in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmUpStart) + "ms");
+                }
+            });
+        }
 
         Watchdog watchdog;
         try {
@@ -206,11 +290,6 @@ public Spigot_v1_14_R4() throws NoSuchFieldException, NoSuchMethodException {
             }
         }
         this.watchdog = watchdog;
-
-        try {
-            Class.forName("org.spigotmc.SpigotConfig");
-            SpigotConfig.config.set("world-settings.worldeditregentempworld.verbose", false);
-        } catch (ClassNotFoundException ignored) {}
     }
 
     @Override
@@ -218,6 +297,91 @@ public DataFixer getDataFixer() {
         return DataConverters_1_14_R4.INSTANCE;
     }
 
+    /**
+     * Get the counts, timings and allocation estimates of every data fix
+     * since the server started.
+     *
+     * @return the metrics
+     */
+    public DataFixerMetrics_v1_14_R4 getDataFixerMetrics() {
+        return DataConverters_1_14_R4.INSTANCE.getMetrics();
+    }
+
+    /**
+     * Fix up many values of the same type and data version at once.
+     *
+     * <p>Large batches are fixed in parallel on the common fork/join pool,
+     * which is much faster than calling {@link DataFixer#fixUp} in a loop for
+     * the thousands of block entities of an old schematic.</p>
+     *
+     * @param type the type of the values
+     * @param originals the values to fix
+     * @param srcVer the data version of the values
+     * @param <T> the type of the values
+     * @return the fixed values, in the same order
+     */
+    public <T> List<T> fixUpAll(DataFixer.FixType<T> type, List<T> originals, int srcVer) {
+        return DataConverters_1_14_R4.INSTANCE.fixUpAll(type, originals, srcVer);
+    }
+
+    /**
+     * Fix up only the parts of a chunk that can affect the given region.
+     *
+     * <p>Sections too far above or below the region, and entities and block
+     * entities outside of it, are dropped before fixing. This is meant for
+     * restoring a small area from an old snapshot.</p>
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return the fixed chunk data
+     */
+    public CompoundBinaryTag fixChunkWithin(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return DataConverters_1_14_R4.INSTANCE.fixChunkWithin(chunk, srcVer, region);
+    }
+
+    /**
+     * Fix up the parts of a chunk that can affect the given region on the
+     * common fork/join pool, so that chunks can be fixed while more are read.
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return a future of the fixed chunk data
+     * @see #fixChunkWithin(CompoundBinaryTag, int, Region)
+     */
+    public CompletableFuture<CompoundBinaryTag> fixChunkWithinAsync(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return DataConverters_1_14_R4.INSTANCE.fixChunkWithinAsync(chunk, srcVer, region);
+    }
+
+    /**
+     * Get the current block state of a legacy block id and data value.
+     *
+     * <p>The legacy tables are built on first use.</p>
+     *
+     * @param id the legacy block id
+     * @param data the legacy data value
+     * @return the block state, or null if there is none
+     */
+    @Nullable
+    public BlockState getLegacyBlock(int id, int data) {
+        return legacyMappings.getValue().getBlock(id, data);
+    }
+
+    /**
+     * Get the current item type of a legacy item id and damage value.
+     *
+     * <p>The legacy tables are built on first use.</p>
+     *
+     * @param id the legacy item id
+     * @param damage the legacy damage value
+     * @return the item type, or null if there is none
+     */
+    @Nullable
+    public ItemType getLegacyItem(int id, int damage) {
+        return legacyMappings.getValue().getItem(id, damage);
+    }
+
     /**
      * Read the given NBT data into the given tile entity.
      *
@@ -246,9 +410,12 @@ private static void readTileEntityIntoTag(TileEntity tileEntity, NBTTagCompound
      */
     @Nullable
     private static String getEntityId(Entity entity) {
-        MinecraftKey minecraftkey = EntityTypes.getName(entity.getEntityType());
+        // computeIfAbsent doesn't store null, so unknown types are looked up every time
+        return ENTITY_IDS.computeIfAbsent(entity.getEntityType(), type -> {
+            MinecraftKey minecraftkey = EntityTypes.getName(type);
 
-        return minecraftkey == null ? null : minecraftkey.toString();
+            return minecraftkey == null ? null : minecraftkey.toString();
+        });
     }
 
     /**
@@ -288,7 +455,13 @@ private static Block getBlockFromType(BlockType blockType) {
     }
 
     private static Item getItemFromType(ItemType itemType) {
-        return IRegistry.ITEM.get(MinecraftKey.a(itemType.getId()));
+        return ITEMS.computeIfAbsent(itemType, type -> IRegistry.ITEM.get(MinecraftKey.a(type.getId())));
+    }
+
+    @Nullable
+    private static ItemType getTypeFromItem(Item item) {
+        // computeIfAbsent doesn't store null, so unknown items are looked up every time
+        return ITEM_TYPES.computeIfAbsent(item, type -> ItemTypes.get(IRegistry.ITEM.getKey(type).toString()));
     }
 
     @Override
@@ -396,6 +569,158 @@ public BaseEntity getEntity(org.bukkit.entity.Entity entity) {
         }
     }
 
+    /**
+     * Spawn many entities at once.
+     *
+     * <p>Their NBT is converted on worker threads first. The entities are
+     * then added chunk by chunk, so that every chunk is loaded just once.
+     * Must be called from the main thread.</p>
+     *
+     * @param world the world
+     * @param locations the location of each entity
+     * @param states the state of each entity
+     * @return the entities that were created
+     */
+    public List<org.bukkit.entity.Entity> createEntities(org.bukkit.World world, List<Location> locations, List<BaseEntity> states) {
+        checkNotNull(world);
+        checkArgument(locations.size() == states.size(), "Expected one location per entity");
+
+        WorldServer worldServer = ((CraftWorld) world).getHandle();
+
+        // converting doesn't touch the world, so do it for every entity at once
+        List<NBTTagCompound> tags = states.parallelStream().map(state -> {
+            CompoundBinaryTag nativeTag = state.getNbt();
+            if (nativeTag == null) {
+                return null;
+            }
+            NBTTagCompound tag = (NBTTagCompound) fromNative(nativeTag);
+            for (String name : Constants.NO_COPY_ENTITY_NBT_FIELDS) {
+                tag.remove(name);
+            }
+            return tag;
+        }).collect(Collectors.toList());
+
+        Map<Long, List<Integer>> byChunk = new LinkedHashMap<>();
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            long chunkKey = ((long) (location.getBlockX() >> 4) << 32) | ((location.getBlockZ() >> 4) & 0xFFFFFFFFL);
+            byChunk.computeIfAbsent(chunkKey, k -> new ArrayList<>()).add(i);
+        }
+
+        List<org.bukkit.entity.Entity> created = new ArrayList<>(locations.size());
+        for (Map.Entry<Long, List<Integer>> chunk : byChunk.entrySet()) {
+            worldServer.getChunkAt((int) (chunk.getKey() >> 32), (int) chunk.getKey().longValue());
+            for (int i : chunk.getValue()) {
+                Entity createdEntity = createEntityFromId(states.get(i).getType().getId(), worldServer);
+                if (createdEntity == null) {
+                    continue;
+                }
+                NBTTagCompound tag = tags.get(i);
+                if (tag != null) {
+                    readTagIntoEntity(tag, createdEntity);
+                }
+
+                Location location = locations.get(i);
+                createdEntity.setLocation(location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch());
+
+                worldServer.addEntity(createdEntity, SpawnReason.CUSTOM);
+                created.add(createdEntity.getBukkitEntity());
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Find every entity in a region.
+     *
+     * <p>The entities are found through the world's own entity lookup. Their
+     * state isn't read, use {@link #getEntity(org.bukkit.entity.Entity)} for
+     * the entities that need it.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @return the entities in the region, players excluded
+     */
+    public List<org.bukkit.entity.Entity> findEntities(org.bukkit.World world, Region region) {
+        checkNotNull(world);
+        checkNotNull(region);
+
+        List<Entity> found = getEntitiesIn(((CraftWorld) world).getHandle(), region);
+        List<org.bukkit.entity.Entity> entities = new ArrayList<>(found.size());
+        for (Entity entity : found) {
+            entities.add(entity.getBukkitEntity());
+        }
+        return entities;
+    }
+
+    /**
+     * Capture the state of every entity in a region in one pass.
+     *
+     * <p>Only saving the entities happens on the calling thread, which must
+     * be the main thread. Converting their data to WorldEdit's NBT happens in
+     * the background, and is waited on when the data is first used.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @return the state of every entity in the region, players excluded
+     */
+    public Map<org.bukkit.entity.Entity, BaseEntity> getEntities(org.bukkit.World world, Region region) {
+        checkNotNull(world);
+        checkNotNull(region);
+
+        Map<org.bukkit.entity.Entity, BaseEntity> entities = new LinkedHashMap<>();
+        for (Entity mcEntity : getEntitiesIn(((CraftWorld) world).getHandle(), region)) {
+            String id = getEntityId(mcEntity);
+            if (id == null) {
+                continue;
+            }
+            NBTTagCompound tag = new NBTTagCompound();
+            readEntityIntoTag(mcEntity, tag);
+            CompletableFuture<CompoundBinaryTag> nbt =
+                CompletableFuture.supplyAsync(() -> (CompoundBinaryTag) toNative(tag), ForkJoinPool.commonPool());
+            entities.put(mcEntity.getBukkitEntity(), new BaseEntity(com.sk89q.worldedit.world.entity.EntityTypes.get(id), LazyReference.from(nbt::join)));
+        }
+        return entities;
+    }
+
+    /**
+     * Remove every entity of the given types in a region.
+     *
+     * <p>The entities are found through the world's own entity lookup, without
+     * creating a Bukkit entity for each of them. Players are never removed.
+     * Must be called from the main thread.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @param filter the types of entity to remove
+     * @return the number of entities removed
+     */
+    public int removeEntities(org.bukkit.World world, Region region, Predicate<com.sk89q.worldedit.world.entity.EntityType> filter) {
+        checkNotNull(world);
+        checkNotNull(region);
+        checkNotNull(filter);
+
+        int removed = 0;
+        for (Entity entity : getEntitiesIn(((CraftWorld) world).getHandle(), region)) {
+            String id = getEntityId(entity);
+            com.sk89q.worldedit.world.entity.EntityType type = id == null ? null : com.sk89q.worldedit.world.entity.EntityTypes.get(id);
+            if (type == null || !filter.test(type)) {
+                continue;
+            }
+            entity.die();
+            removed++;
+        }
+        return removed;
+    }
+
+    private static List<Entity> getEntitiesIn(WorldServer world, Region region) {
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        AxisAlignedBB bounds = new AxisAlignedBB(min.getX(), min.getY(), min.getZ(), max.getX() + 1, max.getY() + 1, max.getZ() + 1);
+        return world.getEntities((Entity) null, bounds,
+            entity -> !(entity instanceof EntityHuman) && region.contains(BlockVector3.at(entity.locX, entity.locY, entity.locZ)));
+    }
+
     @Nullable
     @Override
     public org.bukkit.entity.Entity createEntity(Location location, BaseEntity state) {
@@ -490,17 +815,38 @@ public void sendFakeOP(Player player) {
 
     @Override
     public org.bukkit.inventory.ItemStack adapt(BaseItemStack item) {
-        ItemStack stack = new ItemStack(IRegistry.ITEM.get(MinecraftKey.a(item.getType().getId())), item.getAmount());
+        ItemStack stack = new ItemStack(getItemFromType(item.getType()), item.getAmount());
         stack.setTag(((NBTTagCompound) fromNative(item.getNbt())));
         return CraftItemStack.asCraftMirror(stack);
     }
 
     @Override
     public BaseItemStack adapt(org.bukkit.inventory.ItemStack itemStack) {
-        final ItemStack nmsStack = CraftItemStack.asNMSCopy(itemStack);
-        final BaseItemStack weStack = new BaseItemStack(BukkitAdapter.asItemType(itemStack.getType()), itemStack.getAmount());
-        weStack.setNbt(((CompoundBinaryTag) toNative(nmsStack.getTag())));
-        return weStack;
+        ItemStack nmsStack = getHandle(itemStack);
+        final NBTTagCompound tag;
+        if (nmsStack != null) {
+            // The stack may be in an inventory, so only its tag is copied
+            tag = nmsStack.getTag() == null ? null : nmsStack.getTag().clone();
+        } else {
+            nmsStack = CraftItemStack.asNMSCopy(itemStack);
+            tag = nmsStack.getTag();
+        }
+        ItemType type = getTypeFromItem(nmsStack.getItem());
+        if (type == null) {
+            type = BukkitAdapter.asItemType(itemStack.getType());
+        }
+        return new BaseItemStack(type, tag == null ? null : LazyReference.from(() -> (CompoundBinaryTag) toNative(tag)), itemStack.getAmount());
+    }
+
+    @Nullable
+    private ItemStack getHandle(org.bukkit.inventory.ItemStack itemStack) {
+        if (itemStack instanceof CraftItemStack) {
+            try {
+                return (ItemStack) craftItemStackHandleField.get(itemStack);
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return null;
     }
 
     private LoadingCache<WorldServer, FakePlayer_v1_14_R4> fakePlayers
@@ -550,55 +896,112 @@ public boolean canPlaceAt(org.bukkit.World world, BlockVector3 position, BlockSt
 
     @Override
     public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent extent, RegenOptions options) {
-        WorldServer originalWorld = ((CraftWorld) bukkitWorld).getHandle();
-
-        File saveFolder = Files.createTempDir();
-        // register this just in case something goes wrong
-        // normally it should be deleted at the end of this method
-        saveFolder.deleteOnExit();
+        RegenSession session = new RegenSession(bukkitWorld, region, extent, null);
         try {
-            Environment env = bukkitWorld.getEnvironment();
-            ChunkGenerator gen = bukkitWorld.getGenerator();
-            MinecraftServer server = originalWorld.getServer().getServer();
-
-            WorldData newWorldData = new WorldData(originalWorld.worldData.a((NBTTagCompound) null),
-                    server.dataConverterManager, CraftMagicNumbers.INSTANCE.getDataVersion(), null);
-            newWorldData.setName("worldeditregentempworld");
-            WorldNBTStorage saveHandler = new WorldNBTStorage(saveFolder,
-                    originalWorld.getDataManager().getDirectory().getName(), server, server.dataConverterManager);
+            try {
+                session.step(Long.MAX_VALUE);
+            } finally {
+                session.close();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Regen failed.", e);
+        }
+        return true;
+    }
 
-            try (WorldServer freshWorld = new WorldServer(server, server.executorService, saveHandler,
-                    newWorldData, originalWorld.worldProvider.getDimensionManager(),
-                    originalWorld.getMethodProfiler(), new NoOpWorldLoadListener(), env, gen)) {
-                freshWorld.savingDisabled = true;
-
-                // Pre-gen all the chunks
-                // We need to also pull one more chunk in every direction
-                CuboidRegion expandedPreGen = new CuboidRegion(region.getMinimumPoint().subtract(16, 0, 16),
-                                                                region.getMaximumPoint().add(16, 0, 16));
-                for (BlockVector2 chunk : expandedPreGen.getChunks()) {
-                    freshWorld.getChunkAt(chunk.getBlockX(), chunk.getBlockZ());
+    /**
+     * Regenerate a region without blocking the server thread.
+     *
+     * <p>Regens are queued and run one at a time, a few milliseconds per
+     * tick. Cancelling the returned future stops the regen at the next
+     * tick, and any chunks still waiting to be generated are dropped.</p>
+     *
+     * @param bukkitWorld the world
+     * @param region the region to regenerate
+     * @param extent the extent to write the regenerated blocks to
+     * @param options the regen options
+     * @param progressListener called on the server thread whenever the regen progresses, or null
+     * @return a future that completes once the region has been regenerated
+     */
+    public CompletableFuture<Boolean> regenerateAsync(org.bukkit.World bukkitWorld, Region region, Extent extent,
+                                                      RegenOptions options,
+                                                      @Nullable Consumer<RegenProgress_v1_14_R4> progressListener) {
+        RegenSession session = new RegenSession(bukkitWorld, region, extent, progressListener);
+        queuedRegens.add(session);
+        synchronized (queuedRegens) {
+            if (regenTask == null) {
+                regenTask = Bukkit.getScheduler().runTaskTimer(WorldEditPlugin.getInstance(), this::tickRegens, 1, 1);
+                if (!regenDisableListenerRegistered) {
+                    Bukkit.getPluginManager().registerEvents(new RegenDisableListener(), WorldEditPlugin.getInstance());
+                    regenDisableListenerRegistered = true;
                 }
+            }
+        }
+        return session.future;
+    }
 
-                CraftWorld craftWorld = freshWorld.getWorld();
-                BukkitWorld from = new BukkitWorld(craftWorld);
-                for (BlockVector3 vec : region) {
-                    extent.setBlock(vec, from.getFullBlock(vec));
+    private void tickRegens() {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < REGEN_TICK_BUDGET_NANOS) {
+            if (activeRegen == null) {
+                synchronized (queuedRegens) {
+                    activeRegen = queuedRegens.poll();
+                    if (activeRegen == null) {
+                        regenTask.cancel();
+                        regenTask = null;
+                        return;
+                    }
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
-        } catch (WorldEditException e) {
-            throw new RuntimeException(e);
-        } finally {
-            saveFolder.delete();
+            RegenSession session = activeRegen;
+            boolean done = session.future.isDone();
+            if (!done) {
+                try {
+                    done = session.step(REGEN_TICK_BUDGET_NANOS - (System.nanoTime() - start));
+                } catch (Exception e) {
+                    session.future.completeExceptionally(new IllegalStateException("Regen failed.", e));
+                    done = true;
+                }
+            }
+            if (!done) {
+                return;
+            }
+            activeRegen = null;
             try {
-                Map<String, org.bukkit.World> map = (Map<String, org.bukkit.World>) serverWorldsField.get(Bukkit.getServer());
-                map.remove("worldeditregentempworld");
-            } catch (IllegalAccessException ignored) {
+                session.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to clean up after a regen", e);
+            }
+        }
+    }
+
+    private void copyChunk(Region region, Extent extent, IChunkAccess chunk) throws WorldEditException {
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        ChunkCoordIntPair chunkPos = chunk.getPos();
+        int minX = Math.max(min.getBlockX(), chunkPos.x << 4);
+        int minZ = Math.max(min.getBlockZ(), chunkPos.z << 4);
+        int maxX = Math.min(max.getBlockX(), (chunkPos.x << 4) + 15);
+        int maxZ = Math.min(max.getBlockZ(), (chunkPos.z << 4) + 15);
+        for (int y = min.getBlockY(); y <= max.getBlockY(); y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    BlockVector3 vec = BlockVector3.at(x, y, z);
+                    if (!region.contains(vec)) {
+                        continue;
+                    }
+                    BlockPosition pos = new BlockPosition(x, y, z);
+                    BlockStateHolder<?> state = BlockStateIdAccess.getBlockStateById(Block.getCombinedId(chunk.getType(pos)));
+                    TileEntity blockEntity = chunk.getTileEntity(pos);
+                    if (blockEntity != null) {
+                        NBTTagCompound tag = new NBTTagCompound();
+                        readTileEntityIntoTag(blockEntity, tag);
+                        state = state.toBaseBlock(((CompoundBinaryTag) toNative(tag)));
+                    }
+                    extent.setBlock(vec, state.toBaseBlock());
+                }
             }
         }
-        return true;
     }
 
     private static final Set<SideEffect> SUPPORTED_SIDE_EFFECTS = Sets.immutableEnumSet(
@@ -819,6 +1222,202 @@ public void tick() {
         }
     }
 
+    /**
+     * A single regen, run in steps so it can be spread over several ticks.
+     *
+     * <p>The temporary world is created first, then the chunks of the region
+     * are copied as they finish generating.</p>
+     */
+    private final class RegenSession {
+        private final org.bukkit.World bukkitWorld;
+        private final Region region;
+        private final Extent extent;
+        private final Set<BlockVector2> chunks;
+        @Nullable
+        private final Consumer<RegenProgress_v1_14_R4> progressListener;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final String worldName = "worldeditregentempworld" + regenIds.getAndIncrement();
+        private final Deque<IChunkAccess> copyQueue = new ArrayDeque<>();
+        private int generatedChunks;
+        private int copiedChunks;
+
+        @Nullable
+        private Path saveFolder;
+        @Nullable
+        private ExecutorService workers;
+        @Nullable
+        private WorldServer freshWorld;
+        @Nullable
+        private RegenScheduler_v1_14_R4 scheduler;
+
+        RegenSession(org.bukkit.World bukkitWorld, Region region, Extent extent,
+                     @Nullable Consumer<RegenProgress_v1_14_R4> progressListener) {
+            this.bukkitWorld = bukkitWorld;
+            this.region = region;
+            this.extent = extent;
+            this.chunks = region.getChunks();
+            this.progressListener = progressListener;
+        }
+
+        /**
+         * Run the regen until it is done or the time is up.
+         *
+         * @param budgetNanos the time to spend
+         * @return true if the regen is done
+         * @throws Exception if the regen fails
+         */
+        boolean step(long budgetNanos) throws Exception {
+            long start = System.nanoTime();
+            // generated chunks are copied in between generating more, so a step can make progress in both phases
+            Set<RegenProgress_v1_14_R4.Phase> progressed = EnumSet.noneOf(RegenProgress_v1_14_R4.Phase.class);
+            do {
+                if (freshWorld == null) {
+                    createWorld();
+                    progressed.add(RegenProgress_v1_14_R4.Phase.WORLD_SETUP);
+                } else if (!copyQueue.isEmpty()) {
+                    IChunkAccess chunk = copyQueue.poll();
+                    copyChunk(region, extent, chunk);
+                    scheduler.release(chunk.getPos());
+                    copiedChunks++;
+                    progressed.add(RegenProgress_v1_14_R4.Phase.COPY);
+                } else if (scheduler.isDone()) {
+                    future.complete(true);
+                } else {
+                    long remaining = budgetNanos - (System.nanoTime() - start);
+                    progressed.add(RegenProgress_v1_14_R4.Phase.GENERATION);
+                    for (IChunkAccess chunk : scheduler.poll(Math.max(0, remaining))) {
+                        ChunkCoordIntPair pos = chunk.getPos();
+                        if (chunks.contains(BlockVector2.at(pos.x, pos.z))) {
+                            generatedChunks++;
+                            copyQueue.add(chunk);
+                        } else {
+                            // only generated for the features it spills into the chunks around it
+                            scheduler.release(pos);
+                        }
+                    }
+                }
+            } while (!future.isDone() && System.nanoTime() - start < budgetNanos);
+            if (progressListener != null) {
+                for (RegenProgress_v1_14_R4.Phase progressedPhase : progressed) {
+                    progressListener.accept(
+                        new RegenProgress_v1_14_R4(progressedPhase, chunks.size(), generatedChunks, copiedChunks));
+                }
+            }
+            return future.isDone();
+        }
+
+        private void createWorld() throws IOException {
+            WorldServer originalWorld = ((CraftWorld) bukkitWorld).getHandle();
+            Environment env = bukkitWorld.getEnvironment();
+            ChunkGenerator gen = bukkitWorld.getGenerator();
+            MinecraftServer server = originalWorld.getServer().getServer();
+
+            try {
+                Class.forName("org.spigotmc.SpigotConfig");
+                SpigotConfig.config.set("world-settings." + worldName + ".verbose", false);
+            } catch (ClassNotFoundException ignored) {}
+
+            saveFolder = Files.createTempDirectory("WorldEditWorldGen");
+            WorldData newWorldData = new WorldData(originalWorld.worldData.a((NBTTagCompound) null),
+                    server.dataConverterManager, CraftMagicNumbers.INSTANCE.getDataVersion(), null);
+            newWorldData.setName(worldName);
+            WorldNBTStorage saveHandler = new WorldNBTStorage(saveFolder.toFile(),
+                    originalWorld.getDataManager().getDirectory().getName(), server, server.dataConverterManager);
+
+            workers = RegenScheduler_v1_14_R4.createWorkerPool(REGEN_WORKER_THREADS);
+            freshWorld = new WorldServer(server, workers, saveHandler,
+                    newWorldData, originalWorld.worldProvider.getDimensionManager(),
+                    originalWorld.getMethodProfiler(), new NoOpWorldLoadListener(), env, gen);
+            freshWorld.savingDisabled = true;
+
+            IAsyncTaskHandler executor;
+            try {
+                executor = (IAsyncTaskHandler) chunkProviderExecutorField.get(freshWorld.getChunkProvider());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Couldn't get executor for chunk loading.", e);
+            }
+            // We need to also pull one more chunk in every direction, so features from neighbouring chunks are placed
+            Set<BlockVector2> requested = new HashSet<>();
+            for (BlockVector2 chunk : chunks) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        requested.add(chunk.add(dx, dz));
+                    }
+                }
+            }
+            scheduler = new RegenScheduler_v1_14_R4(
+                freshWorld, executor, getChunkFutureMethod, requested, ChunkStatus.FEATURES,
+                REGEN_MAX_CHUNKS_IN_FLIGHT, REGEN_MAX_HEAP_USAGE
+            );
+        }
+
+        /**
+         * Drop any chunks that are still queued and remove the temporary world.
+         *
+         * @throws IOException if the temporary world can't be removed
+         */
+        void close() throws IOException {
+            if (scheduler != null) {
+                scheduler.cancel();
+            }
+            copyQueue.clear();
+            try {
+                if (freshWorld != null) {
+                    freshWorld.close();
+                }
+            } finally {
+                if (workers != null) {
+                    workers.shutdown();
+                }
+                try {
+                    Map<String, org.bukkit.World> map = (Map<String, org.bukkit.World>) serverWorldsField.get(Bukkit.getServer());
+                    map.remove(worldName);
+                } catch (IllegalAccessException ignored) {
+                }
+                try {
+                    Class.forName("org.spigotmc.SpigotConfig");
+                    SpigotConfig.config.set("world-settings." + worldName, null);
+                } catch (ClassNotFoundException ignored) {}
+                if (saveFolder != null) {
+                    SafeFiles.tryHardToDeleteDir(saveFolder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops every queued regen when WorldEdit is disabled, as its regen task
+     * won't run anymore.
+     */
+    private final class RegenDisableListener implements Listener {
+        @EventHandler
+        public void onPluginDisable(PluginDisableEvent event) {
+            if (event.getPlugin() != WorldEditPlugin.getInstance()) {
+                return;
+            }
+            synchronized (queuedRegens) {
+                if (regenTask == null) {
+                    return;
+                }
+                regenTask.cancel();
+                regenTask = null;
+                RegenSession session;
+                while ((session = queuedRegens.poll()) != null) {
+                    session.future.completeExceptionally(new IllegalStateException("WorldEdit was disabled."));
+                }
+                if (activeRegen != null) {
+                    activeRegen.future.completeExceptionally(new IllegalStateException("WorldEdit was disabled."));
+                    try {
+                        activeRegen.close();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to clean up after a regen", e);
+                    }
+                    activeRegen = null;
+                }
+            }
+        }
+    }
+
     private static class NoOpWorldLoadListener implements WorldLoadListener {
         @Override
         public void a(ChunkCoordIntPair chunkCoordIntPair) {
@@ -0,0 +1,256 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.google.common.cache.CacheStats;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counts, timings and allocation estimates of data fixes, by type and
+ * source data version.
+ *
+ * <p>Fixes through {@code fixUp} are recorded under the name of their
+ * WorldEdit fix type. Fixes run by DFU, including the ones {@code fixUp}
+ * starts, are recorded under {@code dfu/} followed by the DFU type name.</p>
+ *
+ * <p>The adapter keeps a running total, see
+ * {@link Spigot_v1_15_R2#getDataFixerMetrics()}.</p>
+ */
+public final class DataFixerMetrics_v1_15_R2 {
+
+    /**
+     * The metrics of fixes of one type from one data version.
+     */
+    public static final class Fixes {
+        private final String type;
+        private final int sourceVersion;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        private Fixes(String type, int sourceVersion) {
+            this.type = type;
+            this.sourceVersion = sourceVersion;
+        }
+
+        /**
+         * Get the name of the fixed type.
+         *
+         * @return the type name
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Get the data version that was fixed from.
+         *
+         * @return the source data version
+         */
+        public int getSourceVersion() {
+            return sourceVersion;
+        }
+
+        /**
+         * Get the number of fixes.
+         *
+         * @return the number of fixes
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Get the time spent fixing.
+         *
+         * @param unit the unit of the returned time
+         * @return the time spent
+         */
+        public long getTime(TimeUnit unit) {
+            return unit.convert(nanos.sum(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get an estimate of the bytes allocated while fixing, or 0 if the
+         * JVM can't measure allocations. Block state, item type and biome
+         * fixes are mostly cache hits, so their allocations aren't measured.
+         *
+         * @return the allocated bytes
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes.sum();
+        }
+
+        @Override
+        public String toString() {
+            return type + "@" + sourceVersion + ": count=" + getCount()
+                + ", time=" + getTime(TimeUnit.MILLISECONDS) + "ms"
+                + ", allocated=" + getAllocatedBytes() + "B";
+        }
+    }
+
+    /**
+     * The metrics of fixes of one type, by source data version.
+     */
+    static final class TypeMetrics {
+        private final String type;
+        // almost all data is from a version up to the current one, so those are looked up by index
+        private final AtomicReferenceArray<Fixes> byVersion;
+        private final Map<Integer, Fixes> otherVersions = new ConcurrentHashMap<>();
+
+        private TypeMetrics(String type, int maxVersion) {
+            this.type = type;
+            this.byVersion = new AtomicReferenceArray<>(maxVersion + 1);
+        }
+
+        void record(int sourceVersion, long nanos, long allocatedBytes) {
+            Fixes entry = getFixes(sourceVersion);
+            entry.count.increment();
+            entry.nanos.add(nanos);
+            entry.allocatedBytes.add(allocatedBytes);
+        }
+
+        private Fixes getFixes(int sourceVersion) {
+            if (sourceVersion < 0 || sourceVersion >= byVersion.length()) {
+                return otherVersions.computeIfAbsent(sourceVersion, version -> new Fixes(type, version));
+            }
+            Fixes entry = byVersion.get(sourceVersion);
+            if (entry == null) {
+                byVersion.compareAndSet(sourceVersion, null, new Fixes(type, sourceVersion));
+                entry = byVersion.get(sourceVersion);
+            }
+            return entry;
+        }
+
+        private void addTo(List<Fixes> list) {
+            for (int i = 0; i < byVersion.length(); i++) {
+                Fixes entry = byVersion.get(i);
+                if (entry != null) {
+                    list.add(entry);
+                }
+            }
+            list.addAll(otherVersions.values());
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATIONS_SUPPORTED = THREADS instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+        && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+
+    /**
+     * Get the number of bytes the current thread has allocated so far.
+     *
+     * @return the allocated bytes, or 0 if the JVM can't measure allocations
+     */
+    static long currentThreadAllocatedBytes() {
+        if (!ALLOCATIONS_SUPPORTED) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private final int maxVersion;
+    private final Supplier<CacheStats> nameFixStats;
+    private final Map<String, TypeMetrics> types = new ConcurrentHashMap<>();
+    private final LongAdder queuedNanos = new LongAdder();
+
+    DataFixerMetrics_v1_15_R2(int maxVersion, Supplier<CacheStats> nameFixStats) {
+        this.maxVersion = maxVersion;
+        this.nameFixStats = nameFixStats;
+    }
+
+    /**
+     * Get the metrics of a type, to record fixes of it. Callers should keep
+     * the returned metrics rather than look them up for every fix.
+     *
+     * @param type the type name
+     * @return the metrics of the type
+     */
+    TypeMetrics getType(String type) {
+        TypeMetrics metrics = types.get(type);
+        if (metrics == null) {
+            metrics = types.computeIfAbsent(type, name -> new TypeMetrics(name, maxVersion));
+        }
+        return metrics;
+    }
+
+    void addQueuedTime(long nanos) {
+        queuedNanos.add(nanos);
+    }
+
+    /**
+     * Get the metrics of every type and source version fixed so far, sorted
+     * by type and version.
+     *
+     * @return the metrics
+     */
+    public List<Fixes> getFixes() {
+        List<Fixes> list = new ArrayList<>();
+        for (TypeMetrics metrics : types.values()) {
+            metrics.addTo(list);
+        }
+        list.sort(Comparator.comparing(Fixes::getType).thenComparingInt(Fixes::getSourceVersion));
+        return list;
+    }
+
+    /**
+     * Get the time fixes spent waiting for one of the limited number of
+     * concurrent fixes to finish.
+     *
+     * @param unit the unit of the returned time
+     * @return the time spent queued
+     */
+    public long getQueuedTime(TimeUnit unit) {
+        return unit.convert(queuedNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the hit and miss counts of the caches of fixed block state, item
+     * type and biome names, combined.
+     *
+     * @return the cache stats
+     */
+    public CacheStats getNameFixStats() {
+        return nameFixStats.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("queued=")
+            .append(getQueuedTime(TimeUnit.MILLISECONDS)).append("ms")
+            .append(", nameFixes=").append(getNameFixStats());
+        for (Fixes entry : getFixes()) {
+            builder.append(", ").append(entry);
+        }
+        return builder.toString();
+    }
+}
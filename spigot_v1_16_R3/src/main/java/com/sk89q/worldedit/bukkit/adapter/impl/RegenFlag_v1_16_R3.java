@@ -0,0 +1,44 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+/**
+ * Parts of world generation that a regen can skip.
+ *
+ * <p>The temporary world never computes lighting, whichever flags are set.
+ * The regenerated blocks are lit when they are placed into the world.</p>
+ */
+public enum RegenFlag_v1_16_R3 {
+    /**
+     * Don't generate structures, such as villages and strongholds.
+     */
+    SKIP_STRUCTURES,
+    /**
+     * Stop generating once the terrain has been carved, before trees, ores,
+     * plants and other decorations are placed. Structures are placed along
+     * with the decorations, so this skips them too.
+     */
+    SKIP_DECORATIONS,
+    /**
+     * Only write the blocks and biomes that differ from the live world,
+     * leaving the rest of the region untouched.
+     */
+    ONLY_CHANGED
+}
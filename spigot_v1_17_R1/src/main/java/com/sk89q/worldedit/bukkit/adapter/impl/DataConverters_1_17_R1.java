@@ -1,5 +1,11 @@
 package com.sk89q.worldedit.bukkit.adapter.impl;
 
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -15,7 +21,11 @@
 import com.mojang.datafixers.DataFixerBuilder;
 import com.mojang.datafixers.schemas.Schema;
 import com.mojang.serialization.Dynamic;
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldedit.regions.Region;
+import com.sk89q.worldedit.util.nbt.BinaryTag;
 import com.sk89q.worldedit.util.nbt.CompoundBinaryTag;
+import com.sk89q.worldedit.util.nbt.ListBinaryTag;
 import net.minecraft.core.EnumDirection;
 import net.minecraft.nbt.DynamicOpsNBT;
 import net.minecraft.nbt.NBTBase;
@@ -27,6 +37,7 @@
 import net.minecraft.network.chat.IChatBaseComponent;
 import net.minecraft.network.chat.IChatMutableComponent;
 import net.minecraft.resources.MinecraftKey;
+import net.minecraft.server.DispenserRegistry;
 import net.minecraft.util.ChatDeserializer;
 import net.minecraft.util.UtilColor;
 import net.minecraft.util.datafix.DataConverterRegistry;
@@ -34,20 +45,30 @@
 import net.minecraft.world.item.EnumColor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.craftbukkit.v1_17_R1.util.CraftMagicNumbers;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nullable;
 
 /**
@@ -65,9 +86,43 @@
 @SuppressWarnings("UnnecessarilyQualifiedStaticUsage")
 class DataConverters_1_17_R1 extends DataFixerBuilder implements com.sk89q.worldedit.world.DataFixer {
 
-    @SuppressWarnings("unchecked")
     @Override
     public <T> T fixUp(FixType<T> type, T original, int srcVer) {
+        DataFixerMetrics_v1_17_R1.TypeMetrics typeMetrics = fixTypeMetrics.getOrDefault(type, unknownFixMetrics);
+        if (type == FixTypes.BLOCK_STATE || type == FixTypes.ITEM_TYPE || type == FixTypes.BIOME) {
+            // nearly always a cache hit, which is cheaper than measuring its allocations would be
+            long start = System.nanoTime();
+            try {
+                return applyFix(type, original, srcVer);
+            } finally {
+                typeMetrics.record(srcVer, System.nanoTime() - start, 0);
+            }
+        }
+        // whole tags are where DFU allocates the most, so only let a few of them be fixed at once. The server
+        // thread isn't limited, as bulk imports on other threads can hold every permit and waiting for them
+        // would stall the tick. Without a server (headless) there is no such thread, so every fix is limited.
+        boolean limited = (type == FixTypes.CHUNK || type == FixTypes.BLOCK_ENTITY || type == FixTypes.ENTITY)
+            && (Bukkit.getServer() == null || !Bukkit.isPrimaryThread());
+        if (limited) {
+            long queueStart = System.nanoTime();
+            fixPermits.acquireUninterruptibly();
+            metrics.addQueuedTime(System.nanoTime() - queueStart);
+        }
+        long start = System.nanoTime();
+        long startBytes = DataFixerMetrics_v1_17_R1.currentThreadAllocatedBytes();
+        try {
+            return applyFix(type, original, srcVer);
+        } finally {
+            typeMetrics.record(srcVer, System.nanoTime() - start,
+                DataFixerMetrics_v1_17_R1.currentThreadAllocatedBytes() - startBytes);
+            if (limited) {
+                fixPermits.release();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T applyFix(FixType<T> type, T original, int srcVer) {
         if (type == FixTypes.CHUNK) {
             return (T) fixChunk((CompoundBinaryTag) original, srcVer);
         } else if (type == FixTypes.BLOCK_ENTITY) {
@@ -75,31 +130,183 @@ public <T> T fixUp(FixType<T> type, T original, int srcVer) {
         } else if (type == FixTypes.ENTITY) {
             return (T) fixEntity((CompoundBinaryTag) original, srcVer);
         } else if (type == FixTypes.BLOCK_STATE) {
-            return (T) fixBlockState((String) original, srcVer);
+            return (T) blockStateFixes.getUnchecked(new NameFix((String) original, srcVer));
         } else if (type == FixTypes.ITEM_TYPE) {
-            return (T) fixItemType((String) original, srcVer);
+            return (T) itemTypeFixes.getUnchecked(new NameFix((String) original, srcVer));
         } else if (type == FixTypes.BIOME) {
-            return (T) fixBiome((String) original, srcVer);
+            return (T) biomeFixes.getUnchecked(new NameFix((String) original, srcVer));
         }
         return original;
     }
 
+    private static String getFixTypeName(@Nullable FixType<?> type) {
+        if (type == FixTypes.CHUNK) {
+            return "chunk";
+        } else if (type == FixTypes.BLOCK_ENTITY) {
+            return "block_entity";
+        } else if (type == FixTypes.ENTITY) {
+            return "entity";
+        } else if (type == FixTypes.BLOCK_STATE) {
+            return "block_state";
+        } else if (type == FixTypes.ITEM_TYPE) {
+            return "item_type";
+        } else if (type == FixTypes.BIOME) {
+            return "biome";
+        }
+        return "unknown";
+    }
+
+    /**
+     * Get the metrics of every fix so far.
+     *
+     * @return the metrics
+     */
+    DataFixerMetrics_v1_17_R1 getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Fix up many values of the same type and version at once, in parallel
+     * on the common fork/join pool.
+     *
+     * <p>This is much faster than calling {@link #fixUp(FixType, Object, int)}
+     * in a loop for the thousands of block entities of an old schematic.</p>
+     *
+     * @param type the type of the values
+     * @param originals the values to fix
+     * @param srcVer the data version of the values
+     * @param <T> the type of the values
+     * @return the fixed values, in the same order
+     */
+    public <T> List<T> fixUpAll(FixType<T> type, List<T> originals, int srcVer) {
+        Stream<T> stream = originals.size() < MIN_PARALLEL_FIX_UP ? originals.stream() : originals.parallelStream();
+        return stream.map(original -> fixUp(type, original, srcVer)).collect(Collectors.toList());
+    }
+
+    /**
+     * Fix up only the parts of a chunk that can affect the given region.
+     *
+     * <p>Sections too far above or below the region, and entities and block
+     * entities outside of it, are dropped before fixing. This is meant for
+     * restoring a small area from an old snapshot, where the rest of the
+     * chunk would be thrown away anyway.</p>
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return the fixed chunk data
+     */
+    public CompoundBinaryTag fixChunkWithin(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return fixUp(FixTypes.CHUNK, trimChunk(chunk, region), srcVer);
+    }
+
+    /**
+     * Fix up the parts of a chunk that can affect the given region on the
+     * common fork/join pool, so that chunks can be fixed while more are read.
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return a future of the fixed chunk data
+     * @see #fixChunkWithin(CompoundBinaryTag, int, Region)
+     */
+    public CompletableFuture<CompoundBinaryTag> fixChunkWithinAsync(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return CompletableFuture.supplyAsync(() -> fixChunkWithin(chunk, srcVer, region), ForkJoinPool.commonPool());
+    }
+
+    private static CompoundBinaryTag trimChunk(CompoundBinaryTag chunk, Region region) {
+        BinaryTag levelTag = chunk.get("Level");
+        if (!(levelTag instanceof CompoundBinaryTag)) {
+            return chunk;
+        }
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        // keep a section either side, the flattening looks at neighbouring blocks across section borders
+        int minSection = (min.getBlockY() >> 4) - 1;
+        int maxSection = (max.getBlockY() >> 4) + 1;
+
+        CompoundBinaryTag level = (CompoundBinaryTag) levelTag;
+        level = filterList(level, "Sections", section -> {
+            int y = section.getByte("Y");
+            return y >= minSection && y <= maxSection;
+        });
+        level = filterList(level, "Entities", entity -> {
+            ListBinaryTag pos = entity.getList("Pos");
+            return pos.size() == 3
+                && region.contains(BlockVector3.at(pos.getDouble(0), pos.getDouble(1), pos.getDouble(2)));
+        });
+        level = filterList(level, "TileEntities", blockEntity ->
+            region.contains(BlockVector3.at(blockEntity.getInt("x"), blockEntity.getInt("y"), blockEntity.getInt("z")))
+        );
+        return chunk.put("Level", level);
+    }
+
+    private static CompoundBinaryTag filterList(CompoundBinaryTag tag, String key, Predicate<CompoundBinaryTag> filter) {
+        BinaryTag list = tag.get(key);
+        if (!(list instanceof ListBinaryTag)) {
+            return tag;
+        }
+        ListBinaryTag.Builder<BinaryTag> filtered = ListBinaryTag.builder();
+        for (BinaryTag element : (ListBinaryTag) list) {
+            if (!(element instanceof CompoundBinaryTag) || filter.test((CompoundBinaryTag) element)) {
+                filtered.add(element);
+            }
+        }
+        return tag.put(key, filtered.build());
+    }
+
+    /**
+     * Fix up a little data of every type from each of the given versions, so
+     * that DFU builds its rewrite rules now rather than on the first real fix.
+     *
+     * @param executor the executor to run the fixes on
+     * @param sourceVersions the versions to warm up from
+     * @return a future that completes once every fix has run
+     */
+    CompletableFuture<Void> warmUp(Executor executor, int... sourceVersions) {
+        return CompletableFuture.runAsync(() -> {
+            for (int srcVer : sourceVersions) {
+                if (srcVer >= DATA_VERSION) {
+                    continue;
+                }
+                for (LegacyType type : LegacyType.values()) {
+                    fixer.update(type.getDFUType(), new Dynamic<>(OPS_NBT, new NBTTagCompound()), srcVer, DATA_VERSION);
+                }
+                fixBlockState("minecraft:stone", srcVer);
+                fixItemType("minecraft:stone", srcVer);
+                fixBiome("minecraft:plains", srcVer);
+            }
+        }, executor);
+    }
+
     private CompoundBinaryTag fixChunk(CompoundBinaryTag originalChunk, int srcVer) {
-        NBTTagCompound tag = (NBTTagCompound) adapter.fromNative(originalChunk);
-        NBTTagCompound fixed = convert(LegacyType.CHUNK, tag, srcVer);
-        return (CompoundBinaryTag) adapter.toNative(fixed);
+        return fixCompound(LegacyType.CHUNK, originalChunk, srcVer);
     }
 
     private CompoundBinaryTag fixBlockEntity(CompoundBinaryTag origTileEnt, int srcVer) {
-        NBTTagCompound tag = (NBTTagCompound) adapter.fromNative(origTileEnt);
-        NBTTagCompound fixed = convert(LegacyType.BLOCK_ENTITY, tag, srcVer);
-        return (CompoundBinaryTag) adapter.toNative(fixed);
+        return fixCompound(LegacyType.BLOCK_ENTITY, origTileEnt, srcVer);
     }
 
     private CompoundBinaryTag fixEntity(CompoundBinaryTag origEnt, int srcVer) {
-        NBTTagCompound tag = (NBTTagCompound) adapter.fromNative(origEnt);
-        NBTTagCompound fixed = convert(LegacyType.ENTITY, tag, srcVer);
-        return (CompoundBinaryTag) adapter.toNative(fixed);
+        return fixCompound(LegacyType.ENTITY, origEnt, srcVer);
+    }
+
+    private CompoundBinaryTag fixCompound(LegacyType type, CompoundBinaryTag original, int srcVer) {
+        // current data needs no fixing, so don't copy it around
+        if (srcVer >= DATA_VERSION) {
+            return original;
+        }
+        if (srcVer < LEGACY_VERSION) {
+            // the legacy converters only work on NMS tags
+            if (adapter == null) {
+                NBTTagCompound tag = (NBTTagCompound) new Dynamic<>(BinaryTagOps_v1_17_R1.INSTANCE, original).convert(OPS_NBT).getValue();
+                return (CompoundBinaryTag) new Dynamic<>(OPS_NBT, convert(type, tag, srcVer)).convert(BinaryTagOps_v1_17_R1.INSTANCE).getValue();
+            }
+            NBTTagCompound tag = (NBTTagCompound) adapter.fromNative(original);
+            return (CompoundBinaryTag) adapter.toNative(convert(type, tag, srcVer));
+        }
+        Dynamic<BinaryTag> dynamic = new Dynamic<>(BinaryTagOps_v1_17_R1.INSTANCE, original);
+        return (CompoundBinaryTag) fixer.update(type.getDFUType(), dynamic, srcVer, DATA_VERSION).getValue();
     }
 
     private String fixBlockState(String blockState, int srcVer) {
@@ -110,12 +317,27 @@ private String fixBlockState(String blockState, int srcVer) {
     }
 
     private String nbtToState(NBTTagCompound tagCompound) {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = STATE_BUILDER.get();
+        sb.setLength(0);
         sb.append(tagCompound.getString("Name"));
         if (tagCompound.hasKeyOfType("Properties", 10)) {
             sb.append('[');
             NBTTagCompound props = tagCompound.getCompound("Properties");
-            sb.append(props.getKeys().stream().map(k -> k + "=" + props.getString(k).replace("\"", "")).collect(Collectors.joining(",")));
+            boolean first = true;
+            for (String key : props.getKeys()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(key).append('=');
+                String value = props.getString(key);
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c != '"') {
+                        sb.append(c);
+                    }
+                }
+            }
             sb.append(']');
         }
         return sb.toString();
@@ -126,20 +348,48 @@ private static NBTTagCompound stateToNBT(String blockState) {
         NBTTagCompound tag = new NBTTagCompound();
         if (propIdx < 0) {
             tag.setString("Name", blockState);
-        } else {
-            tag.setString("Name", blockState.substring(0, propIdx));
-            NBTTagCompound propTag = new NBTTagCompound();
-            String props = blockState.substring(propIdx + 1, blockState.length() - 1);
-            String[] propArr = props.split(",");
-            for (String pair : propArr) {
-                final String[] split = pair.split("=");
-                propTag.setString(split[0], split[1]);
+            return tag;
+        }
+        tag.setString("Name", stateString(blockState, 0, propIdx));
+        NBTTagCompound propTag = new NBTTagCompound();
+        // the last character is the closing bracket
+        int end = blockState.length() - 1;
+        int start = propIdx + 1;
+        while (start < end) {
+            int comma = blockState.indexOf(',', start);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            int equals = blockState.indexOf('=', start);
+            if (equals >= 0 && equals < comma) {
+                propTag.setString(stateString(blockState, start, equals), stateString(blockState, equals + 1, comma));
             }
-            tag.set("Properties", propTag);
+            start = comma + 1;
         }
+        tag.set("Properties", propTag);
         return tag;
     }
 
+    /**
+     * Get part of a block state string, without copying it if the same text
+     * was seen recently.
+     */
+    private static String stateString(String blockState, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + blockState.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (STATE_STRINGS_SIZE - 1);
+        int length = end - start;
+        String cached = STATE_STRINGS.get(slot);
+        if (cached != null && cached.length() == length && blockState.regionMatches(start, cached, 0, length)) {
+            return cached;
+        }
+        String copy = blockState.substring(start, end);
+        STATE_STRINGS.lazySet(slot, copy);
+        return copy;
+    }
+
     private String fixBiome(String key, int srcVer) {
         return fixName(key, srcVer, DataConverterTypes.y);
     }
@@ -153,20 +403,90 @@ private static String fixName(String key, int srcVer, TypeReference type) {
                 .getValue().asString();
     }
 
+    @Nullable
     private final Spigot_v1_17_R1 adapter;
 
+    // The same names come up over and over again when loading old schematics
+    private final LoadingCache<NameFix, String> blockStateFixes = createNameFixCache(
+        fix -> fixBlockState(fix.name, fix.srcVer));
+    private final LoadingCache<NameFix, String> itemTypeFixes = createNameFixCache(
+        fix -> fixItemType(fix.name, fix.srcVer));
+    private final LoadingCache<NameFix, String> biomeFixes = createNameFixCache(
+        fix -> fixBiome(fix.name, fix.srcVer));
+
     private static final DynamicOpsNBT OPS_NBT = DynamicOpsNBT.a;
     private static final int LEGACY_VERSION = 1343;
-    private static int DATA_VERSION;
-    static DataConverters_1_17_R1 INSTANCE;
+    private static final int NAME_FIX_CACHE_SIZE = 16384;
+    // Block names and property names and values come from a small set, so reuse the strings of earlier states.
+    // A slot is overwritten when two strings land in it, so this never grows, and a miss only costs a substring.
+    private static final int STATE_STRINGS_SIZE = 4096;
+    private static final AtomicReferenceArray<String> STATE_STRINGS = new AtomicReferenceArray<>(STATE_STRINGS_SIZE);
+    private static final ThreadLocal<StringBuilder> STATE_BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+    private static final int MAX_CONCURRENT_FIXES = Integer.getInteger("worldedit.dataFixer.maxConcurrentFixes",
+        Runtime.getRuntime().availableProcessors());
+    // below this, splitting up the work costs more than it saves
+    private static final int MIN_PARALLEL_FIX_UP = 64;
+    private static volatile int DATA_VERSION;
+    static volatile DataConverters_1_17_R1 INSTANCE;
+
+    private final DataFixerMetrics_v1_17_R1 metrics;
+    private final Map<FixType<?>, DataFixerMetrics_v1_17_R1.TypeMetrics> fixTypeMetrics = new IdentityHashMap<>();
+    private final DataFixerMetrics_v1_17_R1.TypeMetrics unknownFixMetrics;
+    // fair, so that queued fixes run in the order they came in
+    private final Semaphore fixPermits = new Semaphore(Math.max(1, MAX_CONCURRENT_FIXES), true);
 
     private final Map<LegacyType, List<DataConverter>> converters = new EnumMap<>(LegacyType.class);
     private final Map<LegacyType, List<DataInspector>> inspectors = new EnumMap<>(LegacyType.class);
+    private final Map<LegacyType, Map<MinecraftKey, List<DataInspectorTagged>>> taggedInspectors = new EnumMap<>(LegacyType.class);
 
     // Set on build
-    private DataFixer fixer;
+    private volatile DataFixer fixer;
     private static final Map<String, LegacyType> DFU_TO_LEGACY = new HashMap<>();
 
+    private static final class NameFix {
+        private final String name;
+        private final int srcVer;
+
+        NameFix(String name, int srcVer) {
+            this.name = name;
+            this.srcVer = srcVer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof NameFix)) {
+                return false;
+            }
+            NameFix other = (NameFix) o;
+            return srcVer == other.srcVer && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + srcVer;
+        }
+    }
+
+    private static LoadingCache<NameFix, String> createNameFixCache(Function<NameFix, String> fixer) {
+        return CacheBuilder.newBuilder()
+            .maximumSize(NAME_FIX_CACHE_SIZE)
+            .recordStats()
+            .build(CacheLoader.from(fixer));
+    }
+
+    /**
+     * Get the hit and miss counts of the block state, item type and biome
+     * name caches combined.
+     *
+     * @return the cache stats
+     */
+    CacheStats getNameFixStats() {
+        return blockStateFixes.stats().plus(itemTypeFixes.stats()).plus(biomeFixes.stats());
+    }
+
     public enum LegacyType {
         LEVEL(DataConverterTypes.a),
         PLAYER(DataConverterTypes.b),
@@ -189,11 +509,45 @@ public TypeReference getDFUType() {
         }
     }
 
-    DataConverters_1_17_R1(int dataVersion, Spigot_v1_17_R1 adapter) {
+    /**
+     * Set up the data fixer without a running server, for fixing data
+     * offline. Only the server jar needs to be on the classpath.
+     *
+     * @return the data fixer
+     */
+    static DataConverters_1_17_R1 createHeadless() {
+        if (INSTANCE == null) {
+            synchronized (DataConverters_1_17_R1.class) {
+                if (INSTANCE == null) {
+                    DispenserRegistry.init();
+                    new DataConverters_1_17_R1(CraftMagicNumbers.INSTANCE.getDataVersion(), null).build(ForkJoinPool.commonPool());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get the data version that data is fixed up to.
+     *
+     * @return the data version
+     */
+    static int getTargetDataVersion() {
+        return DATA_VERSION;
+    }
+
+    DataConverters_1_17_R1(int dataVersion, @Nullable Spigot_v1_17_R1 adapter) {
         super(dataVersion);
         DATA_VERSION = dataVersion;
         INSTANCE = this;
         this.adapter = adapter;
+        this.metrics = new DataFixerMetrics_v1_17_R1(dataVersion, this::getNameFixStats);
+        for (FixType<?> type : new FixType<?>[] {
+            FixTypes.CHUNK, FixTypes.BLOCK_ENTITY, FixTypes.ENTITY, FixTypes.BLOCK_STATE, FixTypes.ITEM_TYPE, FixTypes.BIOME
+        }) {
+            fixTypeMetrics.put(type, metrics.getType(getFixTypeName(type)));
+        }
+        this.unknownFixMetrics = metrics.getType(getFixTypeName(null));
         registerConverters();
         registerInspectors();
     }
@@ -207,6 +561,8 @@ public DataFixer build(final Executor executor) {
 
     private class WrappedDataFixer implements DataFixer {
         private final DataFixer realFixer;
+        // by DFU type name, so that the metric name isn't built for every fix
+        private final Map<String, DataFixerMetrics_v1_17_R1.TypeMetrics> typeMetrics = new ConcurrentHashMap<>();
 
         WrappedDataFixer(DataFixer realFixer) {
             this.realFixer = realFixer;
@@ -214,31 +570,61 @@ private class WrappedDataFixer implements DataFixer {
 
         @Override
         public <T> Dynamic<T> update(TypeReference type, Dynamic<T> dynamic, int sourceVer, int targetVer) {
+            long start = System.nanoTime();
+            long startBytes = DataFixerMetrics_v1_17_R1.currentThreadAllocatedBytes();
+            try {
+                return updateUnmetered(type, dynamic, sourceVer, targetVer);
+            } finally {
+                getTypeMetrics(type).record(sourceVer, System.nanoTime() - start,
+                    DataFixerMetrics_v1_17_R1.currentThreadAllocatedBytes() - startBytes);
+            }
+        }
+
+        private DataFixerMetrics_v1_17_R1.TypeMetrics getTypeMetrics(TypeReference type) {
+            DataFixerMetrics_v1_17_R1.TypeMetrics metrics = typeMetrics.get(type.typeName());
+            if (metrics == null) {
+                metrics = typeMetrics.computeIfAbsent(type.typeName(), name -> DataConverters_1_17_R1.this.metrics.getType("dfu/" + name));
+            }
+            return metrics;
+        }
+
+        private <T> Dynamic<T> updateUnmetered(TypeReference type, Dynamic<T> dynamic, int sourceVer, int targetVer) {
             LegacyType legacyType = DFU_TO_LEGACY.get(type.typeName());
             if (sourceVer < LEGACY_VERSION && legacyType != null) {
-                NBTTagCompound cmp = (NBTTagCompound) dynamic.getValue();
+                NBTTagCompound cmp = (NBTTagCompound) dynamic.convert(OPS_NBT).getValue();
                 int desiredVersion = Math.min(targetVer, LEGACY_VERSION);
 
                 cmp = convert(legacyType, cmp, sourceVer, desiredVersion);
                 sourceVer = desiredVersion;
-                dynamic = new Dynamic(OPS_NBT, cmp);
+                dynamic = new Dynamic<NBTBase>(OPS_NBT, cmp).convert(dynamic.getOps());
             }
             return realFixer.update(type, dynamic, sourceVer, targetVer);
         }
 
         private NBTTagCompound convert(LegacyType type, NBTTagCompound cmp, int sourceVer, int desiredVersion) {
             List<DataConverter> converters = DataConverters_1_17_R1.this.converters.get(type);
-            if (converters != null && !converters.isEmpty()) {
-                for (DataConverter converter : converters) {
-                    int dataVersion = converter.getDataVersion();
-                    if (dataVersion > sourceVer && dataVersion <= desiredVersion) {
-                        cmp = converter.convert(cmp);
+            if (converters != null) {
+                for (int i = firstConverterAfter(converters, sourceVer); i < converters.size(); i++) {
+                    DataConverter converter = converters.get(i);
+                    if (converter.getDataVersion() > desiredVersion) {
+                        break;
+                    }
+                    cmp = converter.convert(cmp);
+                }
+            }
+
+            Map<MinecraftKey, List<DataInspectorTagged>> taggedInspectors = DataConverters_1_17_R1.this.taggedInspectors.get(type);
+            if (taggedInspectors != null) {
+                List<DataInspectorTagged> inspectors = taggedInspectors.get(new MinecraftKey(cmp.getString("id")));
+                if (inspectors != null) {
+                    for (DataInspectorTagged inspector : inspectors) {
+                        cmp = inspector.inspectChecked(cmp, sourceVer, desiredVersion);
                     }
                 }
             }
 
             List<DataInspector> inspectors = DataConverters_1_17_R1.this.inspectors.get(type);
-            if (inspectors != null && !inspectors.isEmpty()) {
+            if (inspectors != null) {
                 for (DataInspector inspector : inspectors) {
                     cmp = inspector.inspect(cmp, sourceVer, desiredVersion);
                 }
@@ -295,7 +681,36 @@ public interface DataConverter {
 
 
     private void registerInspector(LegacyType type, DataInspector inspector) {
-        this.inspectors.computeIfAbsent(type, k -> new ArrayList<>()).add(inspector);
+        if (inspector instanceof DataInspectorTagged) {
+            // only ever applies to a single id, so look it up by that instead of asking every inspector
+            DataInspectorTagged tagged = (DataInspectorTagged) inspector;
+            this.taggedInspectors.computeIfAbsent(type, k -> new HashMap<>())
+                .computeIfAbsent(tagged.getKey(), k -> new ArrayList<>())
+                .add(tagged);
+        } else {
+            this.inspectors.computeIfAbsent(type, k -> new ArrayList<>()).add(inspector);
+        }
+    }
+
+    /**
+     * Find the first converter that upgrades data past the given version.
+     *
+     * @param converters the converters, sorted by data version
+     * @param version the version of the data
+     * @return the index of the first converter, or the size of the list if none apply
+     */
+    private static int firstConverterAfter(List<DataConverter> converters, int version) {
+        int low = 0;
+        int high = converters.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (converters.get(mid).getDataVersion() > version) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
     }
 
     private void registerConverter(LegacyType type, DataConverter converter) {
@@ -846,6 +1261,10 @@ public NBTTagCompound inspect(NBTTagCompound cmp, int sourceVer, int targetVer)
             return cmp;
         }
 
+        MinecraftKey getKey() {
+            return key;
+        }
+
         abstract NBTTagCompound inspectChecked(NBTTagCompound nbttagcompound, int sourceVer, int targetVer);
     }
 
@@ -1856,47 +2275,7 @@ public NBTTagCompound convert(NBTTagCompound cmp) {
                     NBTTagList nbttaglist = nbttagcompound1.getList("pages", 8);
 
                     for (int i = 0; i < nbttaglist.size(); ++i) {
-                        String s = nbttaglist.getString(i);
-                        Object object = null;
-
-                        if (!"null".equals(s) && !UtilColor.b(s)) {
-                            if ((s.charAt(0) != 34 || s.charAt(s.length() - 1) != 34) && (s.charAt(0) != 123 || s.charAt(s.length() - 1) != 125)) {
-                                object = new ChatComponentText(s);
-                            } else {
-                                try {
-                                    object = ChatDeserializer.a(DataConverterSignText.a, s, IChatBaseComponent.class, true);
-                                    if (object == null) {
-                                        object = new ChatComponentText("");
-                                    }
-                                } catch (JsonParseException jsonparseexception) {
-                                    ;
-                                }
-
-                                if (object == null) {
-                                    try {
-                                        object = IChatBaseComponent.ChatSerializer.a(s);
-                                    } catch (JsonParseException jsonparseexception1) {
-                                        ;
-                                    }
-                                }
-
-                                if (object == null) {
-                                    try {
-                                        object = IChatBaseComponent.ChatSerializer.b(s);
-                                    } catch (JsonParseException jsonparseexception2) {
-                                        ;
-                                    }
-                                }
-
-                                if (object == null) {
-                                    object = new ChatComponentText(s);
-                                }
-                            }
-                        } else {
-                            object = new ChatComponentText("");
-                        }
-
-                        nbttaglist.set(i, NBTTagString.a(IChatBaseComponent.ChatSerializer.a((IChatBaseComponent) object)));
+                        nbttaglist.set(i, NBTTagString.a(DataConverterSignText.fixText(nbttaglist.getString(i))));
                     }
 
                     nbttagcompound1.set("pages", nbttaglist);
@@ -1928,8 +2307,6 @@ public NBTTagCompound convert(NBTTagCompound cmp) {
 
     private static class DataConverterZombie implements DataConverter {
 
-        private static final Random a = new Random();
-
         DataConverterZombie() {}
 
         public int getDataVersion() {
@@ -1950,7 +2327,7 @@ public NBTTagCompound convert(NBTTagCompound cmp) {
                     }
 
                     if (i == -1) {
-                        i = this.convert(DataConverterZombie.a.nextInt(6));
+                        i = this.convert(ThreadLocalRandom.current().nextInt(6));
                     }
 
                     cmp.setInt("ZombieType", i);
@@ -2486,6 +2863,9 @@ public Object deserialize(JsonElement jsonelement, Type type, JsonDeserializatio
             }
         }).create();
 
+        // Signs and books in spawn builds tend to repeat the same few lines
+        private static final Cache<String, String> FIXED_TEXT = CacheBuilder.newBuilder().maximumSize(4096).build();
+
         DataConverterSignText() {}
 
         public int getDataVersion() {
@@ -2504,47 +2884,67 @@ public NBTTagCompound convert(NBTTagCompound cmp) {
         }
 
         private void convert(NBTTagCompound nbttagcompound, String s) {
-            String s1 = nbttagcompound.getString(s);
-            Object object = null;
+            nbttagcompound.setString(s, fixText(nbttagcompound.getString(s)));
+        }
+
+        /**
+         * Turn legacy sign or book text into a JSON text component.
+         *
+         * @param s1 the legacy text
+         * @return the text component as JSON
+         */
+        static String fixText(String s1) {
+            String fixed = FIXED_TEXT.getIfPresent(s1);
+            if (fixed == null) {
+                fixed = IChatBaseComponent.ChatSerializer.a(parseText(s1));
+                FIXED_TEXT.put(s1, fixed);
+            }
+            return fixed;
+        }
 
-            if (!"null".equals(s1) && !UtilColor.b(s1)) {
-                if ((s1.charAt(0) != 34 || s1.charAt(s1.length() - 1) != 34) && (s1.charAt(0) != 123 || s1.charAt(s1.length() - 1) != 125)) {
-                    object = new ChatComponentText(s1);
-                } else {
-                    try {
-                        object = ChatDeserializer.a(DataConverterSignText.a, s1, IChatBaseComponent.class, true);
-                        if (object == null) {
-                            object = new ChatComponentText("");
-                        }
-                    } catch (JsonParseException jsonparseexception) {
-                        ;
-                    }
+        private static IChatBaseComponent parseText(String s1) {
+            if ("null".equals(s1) || UtilColor.b(s1)) {
+                return new ChatComponentText("");
+            }
+            char first = s1.charAt(0);
+            char last = s1.charAt(s1.length() - 1);
+            if ((first != '"' || last != '"') && (first != '{' || last != '}')) {
+                return new ChatComponentText(s1);
+            }
 
-                    if (object == null) {
-                        try {
-                            object = IChatBaseComponent.ChatSerializer.a(s1);
-                        } catch (JsonParseException jsonparseexception1) {
-                            ;
-                        }
+            IChatBaseComponent component = null;
+            // the lenient deserializer only knows strings and arrays, so don't let it throw on every object
+            if (first == '"') {
+                try {
+                    component = ChatDeserializer.a(DataConverterSignText.a, s1, IChatBaseComponent.class, true);
+                    if (component == null) {
+                        component = new ChatComponentText("");
                     }
+                } catch (JsonParseException jsonparseexception) {
+                    ;
+                }
+            }
 
-                    if (object == null) {
-                        try {
-                            object = IChatBaseComponent.ChatSerializer.b(s1);
-                        } catch (JsonParseException jsonparseexception2) {
-                            ;
-                        }
-                    }
+            if (component == null) {
+                try {
+                    component = IChatBaseComponent.ChatSerializer.a(s1);
+                } catch (JsonParseException jsonparseexception1) {
+                    ;
+                }
+            }
 
-                    if (object == null) {
-                        object = new ChatComponentText(s1);
-                    }
+            if (component == null) {
+                try {
+                    component = IChatBaseComponent.ChatSerializer.b(s1);
+                } catch (JsonParseException jsonparseexception2) {
+                    ;
                 }
-            } else {
-                object = new ChatComponentText("");
             }
 
-            nbttagcompound.setString(s, IChatBaseComponent.ChatSerializer.a((IChatBaseComponent) object));
+            if (component == null) {
+                component = new ChatComponentText(s1);
+            }
+            return component;
         }
     }
 
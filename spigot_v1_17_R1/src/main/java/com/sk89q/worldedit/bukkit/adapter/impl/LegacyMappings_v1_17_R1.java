@@ -0,0 +1,84 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.sk89q.worldedit.world.block.BlockState;
+import com.sk89q.worldedit.world.item.ItemType;
+import com.sk89q.worldedit.world.registry.LegacyMapper;
+
+import javax.annotation.Nullable;
+
+/**
+ * Array backed copies of the {@link LegacyMapper} tables, so that importing
+ * a legacy schematic costs an array lookup per block rather than building
+ * and hashing an {@code id:data} string.
+ *
+ * <p>The legacy mapper already runs its entries through the data fixer, so
+ * the states and items are those of the running version.</p>
+ */
+final class LegacyMappings_v1_17_R1 {
+
+    static final int MAX_ID = 4096;
+    static final int MAX_DATA = 16;
+
+    private final BlockState[] blocks = new BlockState[MAX_ID * MAX_DATA];
+    private final ItemType[] items = new ItemType[MAX_ID * MAX_DATA];
+
+    LegacyMappings_v1_17_R1(LegacyMapper mapper) {
+        for (int id = 0; id < MAX_ID; id++) {
+            for (int data = 0; data < MAX_DATA; data++) {
+                blocks[id * MAX_DATA + data] = mapper.getBlockFromLegacy(id, data);
+                items[id * MAX_DATA + data] = mapper.getItemFromLegacy(id, data);
+            }
+        }
+    }
+
+    /**
+     * Get the current block state of a legacy block.
+     *
+     * @param id the legacy block id
+     * @param data the legacy data value
+     * @return the block state, or null if there is none
+     */
+    @Nullable
+    BlockState getBlock(int id, int data) {
+        if (id < 0 || id >= MAX_ID || data < 0 || data >= MAX_DATA) {
+            return null;
+        }
+        return blocks[id * MAX_DATA + data];
+    }
+
+    /**
+     * Get the current item type of a legacy item.
+     *
+     * @param id the legacy item id
+     * @param damage the legacy damage value
+     * @return the item type, or null if there is none
+     */
+    @Nullable
+    ItemType getItem(int id, int damage) {
+        if (id < 0 || id >= MAX_ID) {
+            return null;
+        }
+        ItemType item = damage >= 0 && damage < MAX_DATA ? items[id * MAX_DATA + damage] : null;
+        // damage that isn't a variant is tool wear
+        return item != null ? item : items[id * MAX_DATA];
+    }
+}
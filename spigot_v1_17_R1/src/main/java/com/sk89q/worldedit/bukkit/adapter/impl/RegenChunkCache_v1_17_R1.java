@@ -0,0 +1,579 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.sk89q.worldedit.world.biome.BiomeType;
+import com.sk89q.worldedit.world.biome.BiomeTypes;
+import net.minecraft.core.BlockPosition;
+import net.minecraft.nbt.NBTCompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.server.level.WorldServer;
+import net.minecraft.world.level.ChunkCoordIntPair;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.ITileEntity;
+import net.minecraft.world.level.block.entity.TileEntity;
+import net.minecraft.world.level.block.state.IBlockData;
+import net.minecraft.world.level.chunk.BiomeStorage;
+import net.minecraft.world.level.chunk.IChunkAccess;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A size-bounded cache of chunks generated for regens, kept in a memory-mapped
+ * file.
+ *
+ * <p>The file is a ring buffer of records, and the oldest records are
+ * overwritten once it is full. The index of the records is only kept in memory
+ * and is rebuilt from the file when it is opened.</p>
+ */
+final class RegenChunkCache_v1_17_R1 {
+
+    private static final int MAGIC = 0x57455243;
+    private static final int RECORD_MAGIC = 0x43484e4b;
+    private static final int FORMAT_VERSION = 1;
+    // magic, format version, head, tail, end of the wrapped data
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 4;
+    // magic, payload length, data version, settings hash, seed, chunk x, chunk z, checksum
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * Identifies a generated chunk.
+     */
+    static final class Key {
+        private final int dataVersion;
+        private final long settingsHash;
+        private final long seed;
+        private final int x;
+        private final int z;
+
+        Key(int dataVersion, long settingsHash, long seed, int x, int z) {
+            this.dataVersion = dataVersion;
+            this.settingsHash = settingsHash;
+            this.seed = seed;
+            this.x = x;
+            this.z = z;
+        }
+
+        /**
+         * Get the key of another chunk generated with the same settings.
+         *
+         * @param x the chunk X coordinate
+         * @param z the chunk Z coordinate
+         * @return the key
+         */
+        Key at(int x, int z) {
+            return new Key(dataVersion, settingsHash, seed, x, z);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return dataVersion == key.dataVersion && settingsHash == key.settingsHash && seed == key.seed
+                && x == key.x && z == key.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dataVersion, settingsHash, seed, x, z);
+        }
+    }
+
+    /**
+     * Open a cache file, creating it if it does not exist.
+     *
+     * @param file the file
+     * @param maxBytes the maximum size of the file
+     * @return the cache
+     * @throws IOException if the file can't be mapped
+     */
+    static RegenChunkCache_v1_17_R1 open(Path file, long maxBytes) throws IOException {
+        int capacity = (int) Math.min(maxBytes, Integer.MAX_VALUE);
+        checkArgument(capacity > HEADER_SIZE + RECORD_HEADER_SIZE, "Regen cache is too small");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new RegenChunkCache_v1_17_R1(channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), capacity);
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final Map<Key, Integer> index = new HashMap<>();
+    private final TreeMap<Integer, Key> records = new TreeMap<>();
+    // next write position
+    private int head;
+    // start of the oldest record
+    private int tail;
+    // end of the older records once writing has wrapped around, otherwise 0
+    private int wrappedEnd;
+
+    private RegenChunkCache_v1_17_R1(MappedByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        head = buffer.getInt(8);
+        tail = buffer.getInt(12);
+        wrappedEnd = buffer.getInt(16);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION || !isValidHeader()) {
+            head = HEADER_SIZE;
+            tail = HEADER_SIZE;
+            wrappedEnd = 0;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            writeHeader();
+        } else if (wrappedEnd != 0) {
+            scan(tail, wrappedEnd);
+            scan(HEADER_SIZE, head);
+        } else {
+            scan(tail, head);
+        }
+    }
+
+    private boolean isValidHeader() {
+        if (head < HEADER_SIZE || head > capacity || tail < HEADER_SIZE) {
+            return false;
+        }
+        if (wrappedEnd == 0) {
+            return tail <= head;
+        }
+        return head <= tail && tail <= wrappedEnd && wrappedEnd <= capacity;
+    }
+
+    private void scan(int from, int to) {
+        int offset = from;
+        while (offset + RECORD_HEADER_SIZE <= to && buffer.getInt(offset) == RECORD_MAGIC) {
+            int length = buffer.getInt(offset + 4);
+            if (length < 0 || length > to - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            Key key = new Key(
+                buffer.getInt(offset + 8),
+                buffer.getLong(offset + 12),
+                buffer.getLong(offset + 20),
+                buffer.getInt(offset + 28),
+                buffer.getInt(offset + 32)
+            );
+            records.put(offset, key);
+            index.put(key, offset);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(8, head);
+        buffer.putInt(12, tail);
+        buffer.putInt(16, wrappedEnd);
+    }
+
+    /**
+     * Check if a chunk is cached. The chunk may still be evicted, or turn
+     * out to be corrupt, before it is read.
+     *
+     * @param key the key
+     * @return true if cached
+     */
+    synchronized boolean contains(Key key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Get a cached chunk.
+     *
+     * @param key the key
+     * @return the chunk, or null if it isn't cached
+     */
+    @Nullable
+    synchronized RegenChunk_v1_17_R1 get(Key key) {
+        Integer offset = index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        int length = buffer.getInt(offset + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != buffer.getInt(offset + 36)) {
+            index.remove(key, offset);
+            return null;
+        }
+        try {
+            return decode(new ChunkCoordIntPair(key.x, key.z), payload);
+        } catch (IOException e) {
+            index.remove(key, offset);
+            return null;
+        }
+    }
+
+    /**
+     * Take a snapshot of a chunk generated in the temporary world, so it can
+     * be {@linkplain #put(Key, RegenChunk_v1_17_R1, Executor) cached} once the chunk
+     * is gone.
+     *
+     * <p>The chunk must be fully generated, including the features that its
+     * neighbours place in it.</p>
+     *
+     * @param world the temporary world
+     * @param chunk the chunk
+     * @return the snapshot
+     */
+    static RegenChunk_v1_17_R1 snapshot(WorldServer world, IChunkAccess chunk) {
+        ChunkCoordIntPair pos = chunk.getPos();
+        int minY = chunk.getMinBuildHeight();
+        int height = chunk.getHeight();
+        int baseX = pos.x << 4;
+        int baseZ = pos.z << 4;
+
+        Map<Long, NBTTagCompound> blockEntities = new HashMap<>();
+        int[][] sections = new int[height >> 4][];
+        for (int section = 0; section < sections.length; section++) {
+            int[] states = new int[16 * 16 * 16];
+            for (int i = 0; i < states.length; i++) {
+                BlockPosition blockPos = new BlockPosition(
+                    baseX + (i & 15), minY + (section << 4) + (i >> 8), baseZ + ((i >> 4) & 15)
+                );
+                IBlockData blockData = chunk.getType(blockPos);
+                if (blockData.getBlock() instanceof ITileEntity) {
+                    TileEntity blockEntity = chunk.getTileEntity(blockPos);
+                    if (blockEntity != null) {
+                        NBTTagCompound tag = new NBTTagCompound();
+                        blockEntity.save(tag);
+                        blockEntities.put(Snapshot.pack(blockPos.getX(), blockPos.getY(), blockPos.getZ()), tag);
+                    }
+                }
+                states[i] = Block.getCombinedId(blockData);
+            }
+            sections[section] = states;
+        }
+
+        BiomeType[] biomes = null;
+        BiomeStorage biomeIndex = chunk.getBiomeIndex();
+        if (biomeIndex != null) {
+            // biomes are stored in 4x4 columns, and the lookup only uses the lower bits of x and z
+            biomes = new BiomeType[height * 16];
+            for (int i = 0; i < biomes.length; i++) {
+                biomes[i] = Spigot_v1_17_R1.adapt(world,
+                    biomeIndex.getBiome(baseX + (i & 3), minY + (i >> 4), baseZ + ((i >> 2) & 3)));
+            }
+        }
+        return new Snapshot(pos, minY, sections, biomes, blockEntities);
+    }
+
+    /**
+     * Store a chunk generated in the temporary world.
+     *
+     * <p>Compressing the chunk and writing it to the file is left to the
+     * given executor.</p>
+     *
+     * @param key the key
+     * @param chunk a {@linkplain #snapshot(WorldServer, IChunkAccess) snapshot} of the chunk
+     * @param executor the executor to write the chunk with
+     * @return a future that completes once the chunk has been written
+     */
+    CompletableFuture<Void> put(Key key, RegenChunk_v1_17_R1 chunk, Executor executor) {
+        checkArgument(chunk instanceof Snapshot, "Only snapshots can be cached");
+        Snapshot snapshot = (Snapshot) chunk;
+        return CompletableFuture.runAsync(() -> {
+            byte[] payload;
+            try {
+                payload = encode(snapshot);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            synchronized (this) {
+                write(key, payload);
+            }
+        }, executor);
+    }
+
+    private void write(Key key, byte[] payload) {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size > capacity - HEADER_SIZE) {
+            return;
+        }
+        if (head + size > capacity) {
+            if (wrappedEnd != 0) {
+                // the older records don't fit in front of us anymore
+                evict(head, capacity);
+                tail = HEADER_SIZE;
+            }
+            wrappedEnd = head;
+            head = HEADER_SIZE;
+            if (records.isEmpty()) {
+                wrappedEnd = 0;
+            }
+        }
+        if (wrappedEnd != 0) {
+            evict(head, head + size);
+            Integer next = records.ceilingKey(head + size);
+            if (next == null) {
+                tail = HEADER_SIZE;
+                wrappedEnd = 0;
+            } else {
+                tail = next;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer view = buffer.duplicate();
+        view.position(head);
+        view.putInt(RECORD_MAGIC)
+            .putInt(payload.length)
+            .putInt(key.dataVersion)
+            .putLong(key.settingsHash)
+            .putLong(key.seed)
+            .putInt(key.x)
+            .putInt(key.z)
+            .putInt((int) crc.getValue())
+            .put(payload);
+        records.put(head, key);
+        index.put(key, head);
+        head += size;
+        writeHeader();
+    }
+
+    private void evict(int from, int to) {
+        SortedMap<Integer, Key> evicted = records.subMap(from, to);
+        for (Map.Entry<Integer, Key> entry : evicted.entrySet()) {
+            index.remove(entry.getValue(), entry.getKey());
+        }
+        evicted.clear();
+    }
+
+    /**
+     * Write any changes out to the file.
+     */
+    synchronized void flush() {
+        buffer.force();
+    }
+
+    private static byte[] encode(Snapshot chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(chunk.minY);
+            out.writeInt(chunk.sections.length << 4);
+
+            int[] states = new int[16 * 16 * 16];
+            for (int[] section : chunk.sections) {
+                Map<Integer, Integer> palette = new HashMap<>();
+                List<Integer> paletteIds = new ArrayList<>();
+                for (int i = 0; i < section.length; i++) {
+                    int id = section[i];
+                    Integer paletteIndex = palette.get(id);
+                    if (paletteIndex == null) {
+                        paletteIndex = paletteIds.size();
+                        palette.put(id, paletteIndex);
+                        paletteIds.add(id);
+                    }
+                    states[i] = paletteIndex;
+                }
+                out.writeShort(paletteIds.size());
+                for (int id : paletteIds) {
+                    out.writeInt(id);
+                }
+                if (paletteIds.size() > 1) {
+                    for (int state : states) {
+                        if (paletteIds.size() <= 256) {
+                            out.writeByte(state);
+                        } else {
+                            out.writeShort(state);
+                        }
+                    }
+                }
+            }
+
+            out.writeBoolean(chunk.biomes != null);
+            if (chunk.biomes != null) {
+                Map<String, Integer> palette = new HashMap<>();
+                List<String> paletteIds = new ArrayList<>();
+                short[] biomes = new short[chunk.biomes.length];
+                for (int i = 0; i < biomes.length; i++) {
+                    BiomeType biome = chunk.biomes[i];
+                    if (biome == null) {
+                        biomes[i] = -1;
+                        continue;
+                    }
+                    Integer paletteIndex = palette.get(biome.getId());
+                    if (paletteIndex == null) {
+                        paletteIndex = paletteIds.size();
+                        palette.put(biome.getId(), paletteIndex);
+                        paletteIds.add(biome.getId());
+                    }
+                    biomes[i] = paletteIndex.shortValue();
+                }
+                out.writeShort(paletteIds.size());
+                for (String id : paletteIds) {
+                    out.writeUTF(id);
+                }
+                for (short biome : biomes) {
+                    out.writeShort(biome);
+                }
+            }
+
+            out.writeInt(chunk.blockEntities.size());
+            for (Map.Entry<Long, NBTTagCompound> entry : chunk.blockEntities.entrySet()) {
+                long packed = entry.getKey();
+                out.writeByte((int) packed & 15);
+                out.writeInt((int) (packed >> 8));
+                out.writeByte((int) (packed >> 4) & 15);
+                NBTCompressedStreamTools.a(entry.getValue(), out);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Snapshot decode(ChunkCoordIntPair pos, byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)))) {
+            int minY = in.readInt();
+            int height = in.readInt();
+
+            int[][] sections = new int[height >> 4][];
+            for (int section = 0; section < sections.length; section++) {
+                int[] palette = new int[in.readUnsignedShort()];
+                for (int i = 0; i < palette.length; i++) {
+                    palette[i] = in.readInt();
+                }
+                if (palette.length == 1) {
+                    sections[section] = palette;
+                    continue;
+                }
+                int[] states = new int[16 * 16 * 16];
+                for (int i = 0; i < states.length; i++) {
+                    states[i] = palette[palette.length <= 256 ? in.readUnsignedByte() : in.readUnsignedShort()];
+                }
+                sections[section] = states;
+            }
+
+            BiomeType[] biomes = null;
+            if (in.readBoolean()) {
+                BiomeType[] palette = new BiomeType[in.readUnsignedShort()];
+                for (int i = 0; i < palette.length; i++) {
+                    palette[i] = BiomeTypes.get(in.readUTF());
+                }
+                biomes = new BiomeType[height * 16];
+                for (int i = 0; i < biomes.length; i++) {
+                    short biome = in.readShort();
+                    biomes[i] = biome < 0 ? null : palette[biome];
+                }
+            }
+
+            Map<Long, NBTTagCompound> blockEntities = new HashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int x = in.readUnsignedByte();
+                int y = in.readInt();
+                int z = in.readUnsignedByte();
+                blockEntities.put(Snapshot.pack(x, y, z), NBTCompressedStreamTools.a(in));
+            }
+            return new Snapshot(pos, minY, sections, biomes, blockEntities);
+        }
+    }
+
+    private static final class Snapshot implements RegenChunk_v1_17_R1 {
+
+        private static long pack(int x, int y, int z) {
+            return ((long) y << 8) | ((z & 15) << 4) | (x & 15);
+        }
+
+        private final ChunkCoordIntPair pos;
+        private final int minY;
+        private final int[][] sections;
+        @Nullable
+        private final BiomeType[] biomes;
+        private final Map<Long, NBTTagCompound> blockEntities;
+
+        private Snapshot(ChunkCoordIntPair pos, int minY, int[][] sections, @Nullable BiomeType[] biomes,
+                         Map<Long, NBTTagCompound> blockEntities) {
+            this.pos = pos;
+            this.minY = minY;
+            this.sections = sections;
+            this.biomes = biomes;
+            this.blockEntities = blockEntities;
+        }
+
+        @Override
+        public ChunkCoordIntPair getPos() {
+            return pos;
+        }
+
+        @Override
+        public int getBlockStateId(int x, int y, int z) {
+            int section = (y - minY) >> 4;
+            if (y < minY || section >= sections.length) {
+                // air
+                return 0;
+            }
+            int[] states = sections[section];
+            return states.length == 1 ? states[0] : states[(((y - minY) & 15) << 8) | ((z & 15) << 4) | (x & 15)];
+        }
+
+        @Nullable
+        @Override
+        public NBTTagCompound getBlockEntity(int x, int y, int z) {
+            NBTTagCompound tag = blockEntities.get(pack(x, y, z));
+            return tag == null ? null : tag.clone();
+        }
+
+        @Nullable
+        @Override
+        public BiomeType getBiome(int x, int y, int z) {
+            if (biomes == null || y < minY || y - minY >= biomes.length >> 4) {
+                return null;
+            }
+            return biomes[((y - minY) << 4) | ((z & 3) << 2) | (x & 3)];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.sk89q.worldedit.world.biome.BiomeType;
+import net.minecraft.core.BlockPosition;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.server.level.WorldServer;
+import net.minecraft.world.level.ChunkCoordIntPair;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.entity.TileEntity;
+import net.minecraft.world.level.chunk.BiomeStorage;
+import net.minecraft.world.level.chunk.IChunkAccess;
+
+import javax.annotation.Nullable;
+
+/**
+ * A chunk that has been generated for a regen, either straight from the
+ * temporary world or read back from the regen cache.
+ *
+ * <p>All coordinates are world coordinates.</p>
+ */
+interface RegenChunk_v1_17_R1 {
+
+    /**
+     * Wrap a chunk of the temporary world.
+     *
+     * @param world the temporary world
+     * @param chunk the chunk
+     * @return the regen chunk
+     */
+    static RegenChunk_v1_17_R1 of(WorldServer world, IChunkAccess chunk) {
+        return new RegenChunk_v1_17_R1() {
+            @Override
+            public ChunkCoordIntPair getPos() {
+                return chunk.getPos();
+            }
+
+            @Override
+            public int getBlockStateId(int x, int y, int z) {
+                return Block.getCombinedId(chunk.getType(new BlockPosition(x, y, z)));
+            }
+
+            @Nullable
+            @Override
+            public NBTTagCompound getBlockEntity(int x, int y, int z) {
+                TileEntity blockEntity = chunk.getTileEntity(new BlockPosition(x, y, z));
+                if (blockEntity == null) {
+                    return null;
+                }
+                NBTTagCompound tag = new NBTTagCompound();
+                blockEntity.save(tag);
+                return tag;
+            }
+
+            @Nullable
+            @Override
+            public BiomeType getBiome(int x, int y, int z) {
+                BiomeStorage biomeIndex = chunk.getBiomeIndex();
+                if (biomeIndex == null) {
+                    return null;
+                }
+                return Spigot_v1_17_R1.adapt(world, biomeIndex.getBiome(x, y, z));
+            }
+        };
+    }
+
+    /**
+     * Get the position of the chunk.
+     *
+     * @return the chunk position
+     */
+    ChunkCoordIntPair getPos();
+
+    /**
+     * Get the combined id of the block state at the given position.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return the combined block state id
+     */
+    int getBlockStateId(int x, int y, int z);
+
+    /**
+     * Get the block entity data at the given position.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return the block entity data, or null if there is no block entity
+     */
+    @Nullable
+    NBTTagCompound getBlockEntity(int x, int y, int z);
+
+    /**
+     * Get the biome at the given position.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return the biome, or null if unknown
+     */
+    @Nullable
+    BiomeType getBiome(int x, int y, int z);
+}
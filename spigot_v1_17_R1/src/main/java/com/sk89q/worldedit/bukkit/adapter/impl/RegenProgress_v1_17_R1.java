@@ -0,0 +1,94 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+/**
+ * A snapshot of the progress of an asynchronous regen.
+ */
+public final class RegenProgress_v1_17_R1 {
+
+    /**
+     * The phases of a regen.
+     */
+    public enum Phase {
+        /**
+         * Reading the world's generator settings and creating the temporary world.
+         */
+        WORLD_SETUP,
+        /**
+         * Generating chunks in the temporary world.
+         */
+        GENERATION,
+        /**
+         * Copying chunks into the world, either as they finish generating or
+         * from the regen cache.
+         */
+        COPY
+    }
+
+    private final Phase phase;
+    private final int totalChunks;
+    private final int generatedChunks;
+    private final int copiedChunks;
+
+    RegenProgress_v1_17_R1(Phase phase, int totalChunks, int generatedChunks, int copiedChunks) {
+        this.phase = phase;
+        this.totalChunks = totalChunks;
+        this.generatedChunks = generatedChunks;
+        this.copiedChunks = copiedChunks;
+    }
+
+    /**
+     * Get the phase the regen is in.
+     *
+     * @return the phase
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Get the number of chunks in the region.
+     *
+     * @return the number of chunks
+     */
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    /**
+     * Get the number of chunks generated so far. Chunks that were read from
+     * the regen cache are not generated.
+     *
+     * @return the number of generated chunks
+     */
+    public int getGeneratedChunks() {
+        return generatedChunks;
+    }
+
+    /**
+     * Get the number of chunks copied into the world so far.
+     *
+     * @return the number of copied chunks
+     */
+    public int getCopiedChunks() {
+        return copiedChunks;
+    }
+}
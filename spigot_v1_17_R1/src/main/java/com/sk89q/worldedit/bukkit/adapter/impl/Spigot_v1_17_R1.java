@@ -19,20 +19,21 @@
 
 package com.sk89q.worldedit.bukkit.adapter.impl;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.Futures;
-import com.mojang.datafixers.util.Either;
+import com.google.common.hash.Hashing;
 import com.mojang.serialization.Dynamic;
 import com.mojang.serialization.Lifecycle;
 import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.blocks.BaseItem;
 import com.sk89q.worldedit.blocks.BaseItemStack;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.bukkit.WorldEditPlugin;
 import com.sk89q.worldedit.bukkit.adapter.BukkitImplAdapter;
 import com.sk89q.worldedit.entity.BaseEntity;
 import com.sk89q.worldedit.extension.platform.Watchdog;
@@ -78,6 +79,8 @@
 import com.sk89q.worldedit.world.block.BlockType;
 import com.sk89q.worldedit.world.block.BlockTypes;
 import com.sk89q.worldedit.world.item.ItemType;
+import com.sk89q.worldedit.world.item.ItemTypes;
+import com.sk89q.worldedit.world.registry.LegacyMapper;
 import net.minecraft.SystemUtils;
 import net.minecraft.core.BlockPosition;
 import net.minecraft.core.EnumDirection;
@@ -102,11 +105,11 @@
 import net.minecraft.network.protocol.game.PacketPlayOutTileEntityData;
 import net.minecraft.resources.MinecraftKey;
 import net.minecraft.resources.RegistryReadOps;
+import net.minecraft.resources.RegistryWriteOps;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.dedicated.DedicatedServer;
 import net.minecraft.server.level.ChunkProviderServer;
-import net.minecraft.server.level.PlayerChunk;
 import net.minecraft.server.level.WorldServer;
 import net.minecraft.server.level.progress.WorldLoadListener;
 import net.minecraft.util.INamable;
@@ -116,6 +119,7 @@
 import net.minecraft.world.EnumInteractionResult;
 import net.minecraft.world.entity.Entity;
 import net.minecraft.world.entity.EntityTypes;
+import net.minecraft.world.entity.player.EntityHuman;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.context.ItemActionContext;
@@ -135,12 +139,14 @@
 import net.minecraft.world.level.block.state.properties.IBlockState;
 import net.minecraft.world.level.chunk.BiomeStorage;
 import net.minecraft.world.level.chunk.Chunk;
+import net.minecraft.world.level.chunk.ChunkSection;
 import net.minecraft.world.level.chunk.ChunkStatus;
 import net.minecraft.world.level.chunk.IChunkAccess;
 import net.minecraft.world.level.dimension.WorldDimension;
 import net.minecraft.world.level.levelgen.GeneratorSettings;
 import net.minecraft.world.level.storage.Convertable;
 import net.minecraft.world.level.storage.WorldDataServer;
+import net.minecraft.world.phys.AxisAlignedBB;
 import net.minecraft.world.phys.MovingObjectPositionBlock;
 import net.minecraft.world.phys.Vec3D;
 import org.bukkit.Bukkit;
@@ -155,44 +161,105 @@
 import org.bukkit.craftbukkit.v1_17_R1.inventory.CraftItemStack;
 import org.bukkit.craftbukkit.v1_17_R1.util.CraftMagicNumbers;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
 import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.scheduler.BukkitTask;
 import org.spigotmc.SpigotConfig;
 import org.spigotmc.WatchdogThread;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalInt;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nullable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 public final class Spigot_v1_17_R1 implements BukkitImplAdapter {
 
+    private static final int REGEN_WORKER_THREADS = Integer.getInteger("worldedit.regen.workerThreads",
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int REGEN_MAX_CHUNKS_IN_FLIGHT = Integer.getInteger("worldedit.regen.maxChunksInFlight", 64);
+    private static final double REGEN_MAX_HEAP_USAGE =
+        Double.parseDouble(System.getProperty("worldedit.regen.maxHeapUsage", "0.8"));
+    @Nullable
+    private static final String REGEN_CACHE_FILE = System.getProperty("worldedit.regen.cache");
+    private static final long REGEN_CACHE_MAX_BYTES = Long.getLong("worldedit.regen.cache.maxBytes", 256L << 20);
+    private static final boolean REGEN_LOG_METRICS = Boolean.getBoolean("worldedit.regen.logMetrics");
+    private static final long REGEN_TICK_BUDGET_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("worldedit.regen.tickBudgetMillis", 10));
+
+    // Data versions to fix some data from at startup, so the first schematic from them doesn't stall the server
+    private static final int[] DATA_FIXER_WARM_UP_VERSIONS =
+        Arrays.stream(System.getProperty("worldedit.dataFixer.warmUpVersions", "1343,1631,2230").split(","))
+            .map(String::trim)
+            .filter(version -> !version.isEmpty())
+            .mapToInt(Integer::parseInt)
+            .toArray();
+
+    private static final Map<EntityTypes<?>, String> ENTITY_IDS = new ConcurrentHashMap<>();
+    private static final Map<ItemType, Item> ITEMS = new ConcurrentHashMap<>();
+    private static final Map<Item, ItemType> ITEM_TYPES = new ConcurrentHashMap<>();
+
     private final Logger logger = Logger.getLogger(getClass().getCanonicalName());
+    private final LazyReference<LegacyMappings_v1_17_R1> legacyMappings =
+        LazyReference.from(() -> new LegacyMappings_v1_17_R1(LegacyMapper.getInstance()));
 
     private final Field nbtListTagListField;
     private final Field serverWorldsField;
+    private final Field craftItemStackHandleField;
     private final Method getChunkFutureMethod;
     private final Field chunkProviderExecutorField;
+    @Nullable
+    private final RegenChunkCache_v1_17_R1 regenCache;
     private final Watchdog watchdog;
+    private final AtomicInteger regenIds = new AtomicInteger();
+    private final Cache<GeneratorSettings, SeedTemplate> seedTemplates = CacheBuilder.newBuilder().weakKeys().build();
+    private final RegenMetrics_v1_17_R1 regenMetrics = new RegenMetrics_v1_17_R1();
+    private final Queue<RegenSession> queuedRegens = new ConcurrentLinkedQueue<>();
+    @Nullable
+    private RegenSession activeRegen;
+    @Nullable
+    private BukkitTask regenTask;
+    private boolean regenDisableListenerRegistered;
 
     // ------------------------------------------------------------------------
     // Code that may break between versions of Minecraft
@@ -213,6 +280,10 @@ public Spigot_v1_17_R1() throws NoSuchFieldException, NoSuchMethodException {
         serverWorldsField = CraftServer.class.getDeclaredField("worlds");
         serverWorldsField.setAccessible(true);
 
+        // The stack a CraftItemStack wraps
+        craftItemStackHandleField = CraftItemStack.class.getDeclaredField("handle");
+        craftItemStackHandleField.setAccessible(true);
+
         getChunkFutureMethod = ChunkProviderServer.class.getDeclaredMethod("getChunkFutureMainThread",
             int.class, int.class, ChunkStatus.class, boolean.class);
         getChunkFutureMethod.setAccessible(true);
@@ -220,7 +291,29 @@ public Spigot_v1_17_R1() throws NoSuchFieldException, NoSuchMethodException {
         chunkProviderExecutorField = ChunkProviderServer.class.getDeclaredField("h");
         chunkProviderExecutorField.setAccessible(true);
 
-        new DataConverters_1_17_R1(CraftMagicNumbers.INSTANCE.getDataVersion(), this).build(ForkJoinPool.commonPool());
+        RegenChunkCache_v1_17_R1 regenCache = null;
+        if (REGEN_CACHE_FILE != null) {
+            try {
+                regenCache = RegenChunkCache_v1_17_R1.open(Paths.get(REGEN_CACHE_FILE), REGEN_CACHE_MAX_BYTES);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Unable to open the regen cache, regens won't be cached", e);
+            }
+        }
+        this.regenCache = regenCache;
+
+        DataConverters_1_17_R1 dataFixer = new DataConverters_1_17_R1(CraftMagicNumbers.INSTANCE.getDataVersion(), this);
+        dataFixer.build(ForkJoinPool.commonPool());
+        if (DATA_FIXER_WARM_UP_VERSIONS.length > 0) {
+            long warmUpStart = System.nanoTime();
+            dataFixer.warmUp(ForkJoinPool.commonPool(), DATA_FIXER_WARM_UP_VERSIONS).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Failed to warm up the data fixer", e);
+                } else {
+                    logger.info("Warmed up the data fixer in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmUpStart) + "ms");
+                }
+            });
+        }
 
         Watchdog watchdog;
         try {
@@ -234,11 +327,6 @@ public Spigot_v1_17_R1() throws NoSuchFieldException, NoSuchMethodException {
             }
         }
         this.watchdog = watchdog;
-
-        try {
-            Class.forName("org.spigotmc.SpigotConfig");
-            SpigotConfig.config.set("world-settings.worldeditregentempworld.verbose", false);
-        } catch (ClassNotFoundException ignored) {}
     }
 
     @Override
@@ -246,6 +334,91 @@ public DataFixer getDataFixer() {
         return DataConverters_1_17_R1.INSTANCE;
     }
 
+    /**
+     * Get the counts, timings and allocation estimates of every data fix
+     * since the server started.
+     *
+     * @return the metrics
+     */
+    public DataFixerMetrics_v1_17_R1 getDataFixerMetrics() {
+        return DataConverters_1_17_R1.INSTANCE.getMetrics();
+    }
+
+    /**
+     * Fix up many values of the same type and data version at once.
+     *
+     * <p>Large batches are fixed in parallel on the common fork/join pool,
+     * which is much faster than calling {@link DataFixer#fixUp} in a loop for
+     * the thousands of block entities of an old schematic.</p>
+     *
+     * @param type the type of the values
+     * @param originals the values to fix
+     * @param srcVer the data version of the values
+     * @param <T> the type of the values
+     * @return the fixed values, in the same order
+     */
+    public <T> List<T> fixUpAll(DataFixer.FixType<T> type, List<T> originals, int srcVer) {
+        return DataConverters_1_17_R1.INSTANCE.fixUpAll(type, originals, srcVer);
+    }
+
+    /**
+     * Fix up only the parts of a chunk that can affect the given region.
+     *
+     * <p>Sections too far above or below the region, and entities and block
+     * entities outside of it, are dropped before fixing. This is meant for
+     * restoring a small area from an old snapshot.</p>
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return the fixed chunk data
+     */
+    public CompoundBinaryTag fixChunkWithin(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return DataConverters_1_17_R1.INSTANCE.fixChunkWithin(chunk, srcVer, region);
+    }
+
+    /**
+     * Fix up the parts of a chunk that can affect the given region on the
+     * common fork/join pool, so that chunks can be fixed while more are read.
+     *
+     * @param chunk the chunk data
+     * @param srcVer the data version of the chunk
+     * @param region the region that will be restored
+     * @return a future of the fixed chunk data
+     * @see #fixChunkWithin(CompoundBinaryTag, int, Region)
+     */
+    public CompletableFuture<CompoundBinaryTag> fixChunkWithinAsync(CompoundBinaryTag chunk, int srcVer, Region region) {
+        return DataConverters_1_17_R1.INSTANCE.fixChunkWithinAsync(chunk, srcVer, region);
+    }
+
+    /**
+     * Get the current block state of a legacy block id and data value.
+     *
+     * <p>The legacy tables are built on first use.</p>
+     *
+     * @param id the legacy block id
+     * @param data the legacy data value
+     * @return the block state, or null if there is none
+     */
+    @Nullable
+    public BlockState getLegacyBlock(int id, int data) {
+        return legacyMappings.getValue().getBlock(id, data);
+    }
+
+    /**
+     * Get the current item type of a legacy item id and damage value.
+     *
+     * <p>The legacy tables are built on first use.</p>
+     *
+     * @param id the legacy item id
+     * @param damage the legacy damage value
+     * @return the item type, or null if there is none
+     */
+    @Nullable
+    public ItemType getLegacyItem(int id, int damage) {
+        return legacyMappings.getValue().getItem(id, damage);
+    }
+
     /**
      * Read the given NBT data into the given tile entity.
      *
@@ -275,9 +448,12 @@ private static void readTileEntityIntoTag(TileEntity tileEntity, NBTTagCompound
      */
     @Nullable
     private static String getEntityId(Entity entity) {
-        MinecraftKey minecraftkey = EntityTypes.getName(entity.getEntityType());
+        // computeIfAbsent doesn't store null, so unknown types are looked up every time
+        return ENTITY_IDS.computeIfAbsent(entity.getEntityType(), type -> {
+            MinecraftKey minecraftkey = EntityTypes.getName(type);
 
-        return minecraftkey == null ? null : minecraftkey.toString();
+            return minecraftkey == null ? null : minecraftkey.toString();
+        });
     }
 
     /**
@@ -317,7 +493,13 @@ private static Block getBlockFromType(BlockType blockType) {
     }
 
     private static Item getItemFromType(ItemType itemType) {
-        return IRegistry.Z.get(MinecraftKey.a(itemType.getId()));
+        return ITEMS.computeIfAbsent(itemType, type -> IRegistry.Z.get(MinecraftKey.a(type.getId())));
+    }
+
+    @Nullable
+    private static ItemType getTypeFromItem(Item item) {
+        // computeIfAbsent doesn't store null, so unknown items are looked up every time
+        return ITEM_TYPES.computeIfAbsent(item, type -> ItemTypes.get(IRegistry.Z.getKey(type).toString()));
     }
 
     @Override
@@ -425,6 +607,158 @@ public BaseEntity getEntity(org.bukkit.entity.Entity entity) {
         }
     }
 
+    /**
+     * Spawn many entities at once.
+     *
+     * <p>Their NBT is converted on worker threads first. The entities are
+     * then added chunk by chunk, so that every chunk is loaded just once.
+     * Must be called from the main thread.</p>
+     *
+     * @param world the world
+     * @param locations the location of each entity
+     * @param states the state of each entity
+     * @return the entities that were created
+     */
+    public List<org.bukkit.entity.Entity> createEntities(org.bukkit.World world, List<Location> locations, List<BaseEntity> states) {
+        checkNotNull(world);
+        checkArgument(locations.size() == states.size(), "Expected one location per entity");
+
+        WorldServer worldServer = ((CraftWorld) world).getHandle();
+
+        // converting doesn't touch the world, so do it for every entity at once
+        List<NBTTagCompound> tags = states.parallelStream().map(state -> {
+            CompoundBinaryTag nativeTag = state.getNbt();
+            if (nativeTag == null) {
+                return null;
+            }
+            NBTTagCompound tag = (NBTTagCompound) fromNative(nativeTag);
+            for (String name : Constants.NO_COPY_ENTITY_NBT_FIELDS) {
+                tag.remove(name);
+            }
+            return tag;
+        }).collect(Collectors.toList());
+
+        Map<Long, List<Integer>> byChunk = new LinkedHashMap<>();
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            long chunkKey = ((long) (location.getBlockX() >> 4) << 32) | ((location.getBlockZ() >> 4) & 0xFFFFFFFFL);
+            byChunk.computeIfAbsent(chunkKey, k -> new ArrayList<>()).add(i);
+        }
+
+        List<org.bukkit.entity.Entity> created = new ArrayList<>(locations.size());
+        for (Map.Entry<Long, List<Integer>> chunk : byChunk.entrySet()) {
+            worldServer.getChunkAt((int) (chunk.getKey() >> 32), (int) chunk.getKey().longValue());
+            for (int i : chunk.getValue()) {
+                Entity createdEntity = createEntityFromId(states.get(i).getType().getId(), worldServer);
+                if (createdEntity == null) {
+                    continue;
+                }
+                NBTTagCompound tag = tags.get(i);
+                if (tag != null) {
+                    readTagIntoEntity(tag, createdEntity);
+                }
+
+                Location location = locations.get(i);
+                createdEntity.setLocation(location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch());
+
+                worldServer.addEntity(createdEntity, SpawnReason.CUSTOM);
+                created.add(createdEntity.getBukkitEntity());
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Find every entity in a region.
+     *
+     * <p>The entities are found through the world's own entity lookup. Their
+     * state isn't read, use {@link #getEntity(org.bukkit.entity.Entity)} for
+     * the entities that need it.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @return the entities in the region, players excluded
+     */
+    public List<org.bukkit.entity.Entity> findEntities(org.bukkit.World world, Region region) {
+        checkNotNull(world);
+        checkNotNull(region);
+
+        List<Entity> found = getEntitiesIn(((CraftWorld) world).getHandle(), region);
+        List<org.bukkit.entity.Entity> entities = new ArrayList<>(found.size());
+        for (Entity entity : found) {
+            entities.add(entity.getBukkitEntity());
+        }
+        return entities;
+    }
+
+    /**
+     * Capture the state of every entity in a region in one pass.
+     *
+     * <p>Only saving the entities happens on the calling thread, which must
+     * be the main thread. Converting their data to WorldEdit's NBT happens in
+     * the background, and is waited on when the data is first used.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @return the state of every entity in the region, players excluded
+     */
+    public Map<org.bukkit.entity.Entity, BaseEntity> getEntities(org.bukkit.World world, Region region) {
+        checkNotNull(world);
+        checkNotNull(region);
+
+        Map<org.bukkit.entity.Entity, BaseEntity> entities = new LinkedHashMap<>();
+        for (Entity mcEntity : getEntitiesIn(((CraftWorld) world).getHandle(), region)) {
+            String id = getEntityId(mcEntity);
+            if (id == null) {
+                continue;
+            }
+            NBTTagCompound tag = new NBTTagCompound();
+            readEntityIntoTag(mcEntity, tag);
+            CompletableFuture<CompoundBinaryTag> nbt =
+                CompletableFuture.supplyAsync(() -> (CompoundBinaryTag) toNative(tag), ForkJoinPool.commonPool());
+            entities.put(mcEntity.getBukkitEntity(), new BaseEntity(com.sk89q.worldedit.world.entity.EntityTypes.get(id), LazyReference.from(nbt::join)));
+        }
+        return entities;
+    }
+
+    /**
+     * Remove every entity of the given types in a region.
+     *
+     * <p>The entities are found through the world's own entity lookup, without
+     * creating a Bukkit entity for each of them. Players are never removed.
+     * Must be called from the main thread.</p>
+     *
+     * @param world the world
+     * @param region the region
+     * @param filter the types of entity to remove
+     * @return the number of entities removed
+     */
+    public int removeEntities(org.bukkit.World world, Region region, Predicate<com.sk89q.worldedit.world.entity.EntityType> filter) {
+        checkNotNull(world);
+        checkNotNull(region);
+        checkNotNull(filter);
+
+        int removed = 0;
+        for (Entity entity : getEntitiesIn(((CraftWorld) world).getHandle(), region)) {
+            String id = getEntityId(entity);
+            com.sk89q.worldedit.world.entity.EntityType type = id == null ? null : com.sk89q.worldedit.world.entity.EntityTypes.get(id);
+            if (type == null || !filter.test(type)) {
+                continue;
+            }
+            entity.die();
+            removed++;
+        }
+        return removed;
+    }
+
+    private static List<Entity> getEntitiesIn(WorldServer world, Region region) {
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        AxisAlignedBB bounds = new AxisAlignedBB(min.getX(), min.getY(), min.getZ(), max.getX() + 1, max.getY() + 1, max.getZ() + 1);
+        return world.getEntities((Entity) null, bounds,
+            entity -> !(entity instanceof EntityHuman) && region.contains(BlockVector3.at(entity.locX(), entity.locY(), entity.locZ())));
+    }
+
     @Nullable
     @Override
     public org.bukkit.entity.Entity createEntity(Location location, BaseEntity state) {
@@ -515,17 +849,38 @@ public void sendFakeOP(Player player) {
 
     @Override
     public org.bukkit.inventory.ItemStack adapt(BaseItemStack item) {
-        ItemStack stack = new ItemStack(IRegistry.Z.get(MinecraftKey.a(item.getType().getId())), item.getAmount());
+        ItemStack stack = new ItemStack(getItemFromType(item.getType()), item.getAmount());
         stack.setTag(((NBTTagCompound) fromNative(item.getNbt())));
         return CraftItemStack.asCraftMirror(stack);
     }
 
     @Override
     public BaseItemStack adapt(org.bukkit.inventory.ItemStack itemStack) {
-        final ItemStack nmsStack = CraftItemStack.asNMSCopy(itemStack);
-        final BaseItemStack weStack = new BaseItemStack(BukkitAdapter.asItemType(itemStack.getType()), itemStack.getAmount());
-        weStack.setNbt(((CompoundBinaryTag) toNative(nmsStack.getTag())));
-        return weStack;
+        ItemStack nmsStack = getHandle(itemStack);
+        final NBTTagCompound tag;
+        if (nmsStack != null) {
+            // The stack may be in an inventory, so only its tag is copied
+            tag = nmsStack.getTag() == null ? null : nmsStack.getTag().clone();
+        } else {
+            nmsStack = CraftItemStack.asNMSCopy(itemStack);
+            tag = nmsStack.getTag();
+        }
+        ItemType type = getTypeFromItem(nmsStack.getItem());
+        if (type == null) {
+            type = BukkitAdapter.asItemType(itemStack.getType());
+        }
+        return new BaseItemStack(type, tag == null ? null : LazyReference.from(() -> (CompoundBinaryTag) toNative(tag)), itemStack.getAmount());
+    }
+
+    @Nullable
+    private ItemStack getHandle(org.bukkit.inventory.ItemStack itemStack) {
+        if (itemStack instanceof CraftItemStack) {
+            try {
+                return (ItemStack) craftItemStackHandleField.get(itemStack);
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return null;
     }
 
     private LoadingCache<WorldServer, FakePlayer_v1_17_R1> fakePlayers
@@ -575,8 +930,47 @@ public boolean canPlaceAt(org.bukkit.World world, BlockVector3 position, BlockSt
 
     @Override
     public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent extent, RegenOptions options) {
+        return regenerate(bukkitWorld, region, extent, options, EnumSet.noneOf(RegenFlag_v1_17_R1.class));
+    }
+
+    /**
+     * Regenerate a region, skipping parts of world generation.
+     *
+     * @param bukkitWorld the world
+     * @param region the region to regenerate
+     * @param extent the extent to write the regenerated blocks to
+     * @param options the regen options
+     * @param flags the parts of world generation to skip
+     * @return true
+     */
+    public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent extent, RegenOptions options,
+                              Set<RegenFlag_v1_17_R1> flags) {
+        return regenerateAll(bukkitWorld, Collections.singletonList(region), Collections.singletonList(extent),
+            options, flags);
+    }
+
+    /**
+     * Regenerate several regions of a world in one go.
+     *
+     * <p>The regions share a single temporary world, and chunks that are
+     * needed by more than one region are only generated once.</p>
+     *
+     * @param bukkitWorld the world
+     * @param regions the regions to regenerate
+     * @param extents the extents to write the regenerated blocks to, one for each region
+     * @param options the regen options
+     * @param flags the parts of world generation to skip
+     * @return true
+     */
+    public boolean regenerateAll(org.bukkit.World bukkitWorld, List<Region> regions, List<Extent> extents,
+                                 RegenOptions options, Set<RegenFlag_v1_17_R1> flags) {
+        RegenSession session = new RegenSession(bukkitWorld, regions, extents, options, flags, null);
         try {
-            doRegen(bukkitWorld, region, extent, options);
+            try {
+                session.step(Long.MAX_VALUE);
+            } finally {
+                session.close();
+            }
         } catch (Exception e) {
             throw new IllegalStateException("Regen failed.", e);
         }
@@ -584,99 +978,154 @@ public boolean regenerate(org.bukkit.World bukkitWorld, Region region, Extent ex
         return true;
     }
 
-    private void doRegen(org.bukkit.World bukkitWorld, Region region, Extent extent, RegenOptions options) throws Exception {
-        Environment env = bukkitWorld.getEnvironment();
-        ChunkGenerator gen = bukkitWorld.getGenerator();
-
-        Path tempDir = Files.createTempDirectory("WorldEditWorldGen");
-        Convertable convertable = Convertable.a(tempDir);
-        ResourceKey<WorldDimension> worldDimKey = getWorldDimKey(env);
-        try (Convertable.ConversionSession session = convertable.c("worldeditregentempworld", worldDimKey)) {
-            WorldServer originalWorld = ((CraftWorld) bukkitWorld).getHandle();
-            //WorldDataServer levelProperties = (WorldDataServer) originalWorld.getCraftServer().getServer().getSaveData();
-            WorldDataServer originalSettings = originalWorld.E;
-            GeneratorSettings originalOpts = originalSettings.getGeneratorSettings();
-
-            long seed = options.getSeed().orElse(originalWorld.getSeed());
-            GeneratorSettings newOpts = options.getSeed().isPresent()
-                ? replaceSeed(originalWorld, seed, originalOpts)
-                : originalOpts;
-
+    /**
+     * Regenerate a region without blocking the server thread.
+     *
+     * <p>Regens are queued and run one at a time, a few milliseconds per
+     * tick. Cancelling the returned future stops the regen at the next
+     * tick, and any chunks still waiting to be generated are dropped.</p>
+     *
+     * @param bukkitWorld the world
+     * @param region the region to regenerate
+     * @param extent the extent to write the regenerated blocks to
+     * @param options the regen options
+     * @param flags the parts of world generation to skip
+     * @param progressListener called on the server thread whenever the regen progresses, or null
+     * @return a future that completes once the region has been regenerated
+     */
+    public CompletableFuture<Boolean> regenerateAsync(org.bukkit.World bukkitWorld, Region region, Extent extent,
+                                                      RegenOptions options, Set<RegenFlag_v1_17_R1> flags,
+                                                      @Nullable Consumer<RegenProgress_v1_17_R1> progressListener) {
+        return regenerateAllAsync(bukkitWorld, Collections.singletonList(region), Collections.singletonList(extent),
+            options, flags, progressListener);
+    }
 
-            WorldSettings newWorldSettings = new WorldSettings("worldeditregentempworld",
-                originalSettings.e.getGameType(),
-                originalSettings.e.isHardcore(),
-                originalSettings.e.getDifficulty(),
-                originalSettings.e.e(),
-                originalSettings.e.getGameRules(),
-                originalSettings.e.g());
-            WorldDataServer newWorldData = new WorldDataServer(newWorldSettings, newOpts, Lifecycle.stable());
+    /**
+     * Regenerate several regions of a world in one go, without blocking the
+     * server thread.
+     *
+     * @param bukkitWorld the world
+     * @param regions the regions to regenerate
+     * @param extents the extents to write the regenerated blocks to, one for each region
+     * @param options the regen options
+     * @param flags the parts of world generation to skip
+     * @param progressListener called on the server thread whenever the regen progresses, or null
+     * @return a future that completes once every region has been regenerated
+     * @see #regenerateAsync(org.bukkit.World, Region, Extent, RegenOptions, Set, Consumer)
+     * @see #regenerateAll(org.bukkit.World, List, List, RegenOptions, Set)
+     */
+    public CompletableFuture<Boolean> regenerateAllAsync(org.bukkit.World bukkitWorld, List<Region> regions,
+                                                         List<Extent> extents, RegenOptions options,
+                                                         Set<RegenFlag_v1_17_R1> flags,
+                                                         @Nullable Consumer<RegenProgress_v1_17_R1> progressListener) {
+        RegenSession session = new RegenSession(bukkitWorld, regions, extents, options, flags, progressListener);
+        queuedRegens.add(session);
+        synchronized (queuedRegens) {
+            if (regenTask == null) {
+                regenTask = Bukkit.getScheduler().runTaskTimer(WorldEditPlugin.getInstance(), this::tickRegens, 1, 1);
+                if (!regenDisableListenerRegistered) {
+                    Bukkit.getPluginManager().registerEvents(new RegenDisableListener(), WorldEditPlugin.getInstance());
+                    regenDisableListenerRegistered = true;
+                }
+            }
+        }
+        return session.future;
+    }
 
-            WorldServer freshWorld = new WorldServer(
-                originalWorld.getMinecraftServer(),
-                originalWorld.getMinecraftServer().aA,
-                session, newWorldData,
-                originalWorld.getDimensionKey(),
-                originalWorld.getDimensionManager(),
-                //originalWorld.getTypeKey(),
-                new NoOpWorldLoadListener(),
-                newOpts.d().a(worldDimKey).c(),
-                originalWorld.isDebugWorld(),
-                seed,
-                ImmutableList.of(),
-                false,
-                env, gen
-            );
-            try {
-                regenForWorld(region, extent, freshWorld, options);
-            } finally {
-                freshWorld.getChunkProvider().close(false);
+    private void tickRegens() {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < REGEN_TICK_BUDGET_NANOS) {
+            if (activeRegen == null) {
+                synchronized (queuedRegens) {
+                    activeRegen = queuedRegens.poll();
+                    if (activeRegen == null) {
+                        regenTask.cancel();
+                        regenTask = null;
+                        return;
+                    }
+                }
             }
-        } finally {
+            RegenSession session = activeRegen;
+            boolean done = session.future.isDone();
+            if (!done) {
+                try {
+                    done = session.step(REGEN_TICK_BUDGET_NANOS - (System.nanoTime() - start));
+                } catch (Exception e) {
+                    session.future.completeExceptionally(new IllegalStateException("Regen failed.", e));
+                    done = true;
+                }
+            }
+            if (!done) {
+                return;
+            }
+            activeRegen = null;
             try {
-                Map<String, org.bukkit.World> map = (Map<String, org.bukkit.World>) serverWorldsField.get(Bukkit.getServer());
-                map.remove("worldeditregentempworld");
-            } catch (IllegalAccessException ignored) {
+                session.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to clean up after a regen", e);
             }
-            SafeFiles.tryHardToDeleteDir(tempDir);
         }
     }
 
+    /**
+     * Get the timings and counters of every regen run by this adapter so far.
+     *
+     * <p>Set the {@code worldedit.regen.logMetrics} system property to also
+     * log the metrics of each regen when it finishes.</p>
+     *
+     * @return a copy of the metrics
+     */
+    public RegenMetrics_v1_17_R1 getRegenMetrics() {
+        return regenMetrics.copy();
+    }
+
     private GeneratorSettings replaceSeed(WorldServer originalWorld, long seed, GeneratorSettings originalOpts) {
-        RegistryReadOps<NBTBase> nbtRegOps = RegistryReadOps.a(
+        try {
+            return seedTemplates.get(originalOpts, () -> new SeedTemplate(originalWorld, originalOpts)).withSeed(seed);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to map GeneratorOptions", e.getCause());
+        }
+    }
+
+    private GeneratorSettings disableStructures(WorldServer originalWorld, GeneratorSettings originalOpts) {
+        return mapGeneratorSettings(originalWorld, originalOpts,
+            dynamic -> dynamic.set("generate_features", dynamic.createBoolean(false)));
+    }
+
+    private RegistryReadOps<NBTBase> createRegistryOps(WorldServer originalWorld) {
+        return RegistryReadOps.a(
             DynamicOpsNBT.a,
             originalWorld.getCraftServer().getServer().aC.i(),
             IRegistryCustom.a()
         );
+    }
 
+    private GeneratorSettings mapGeneratorSettings(WorldServer originalWorld, GeneratorSettings originalOpts,
+                                                   UnaryOperator<Dynamic<NBTBase>> mapper) {
+        RegistryReadOps<NBTBase> nbtRegOps = createRegistryOps(originalWorld);
         return GeneratorSettings.a
             .encodeStart(nbtRegOps, originalOpts)
-            .flatMap(tag ->
-                GeneratorSettings.a.parse(
-                    recursivelySetSeed(new Dynamic<>(nbtRegOps, tag), seed, new HashSet<>())
-                )
-            )
+            .flatMap(tag -> GeneratorSettings.a.parse(mapper.apply(new Dynamic<>(nbtRegOps, tag))))
             .result()
             .orElseThrow(() -> new IllegalStateException("Unable to map GeneratorOptions"));
     }
 
-    @SuppressWarnings("unchecked")
-    private Dynamic<NBTBase> recursivelySetSeed(Dynamic<NBTBase> dynamic, long seed, Set<Dynamic<NBTBase>> seen) {
-        if (!seen.add(dynamic)) {
-            return dynamic;
-        }
-        return dynamic.updateMapValues(pair -> {
-            if (pair.getFirst().asString("").equals("seed")) {
-                return pair.mapSecond(v -> v.createLong(seed));
-            }
-            if (pair.getSecond().getValue() instanceof NBTTagCompound) {
-                return pair.mapSecond(v -> recursivelySetSeed((Dynamic<NBTBase>) v, seed, seen));
-            }
-            return pair;
-        });
+    private long hashGeneratorSettings(WorldServer originalWorld, GeneratorSettings settings, Environment env,
+                                       ChunkStatus status) {
+        // encode with the world's registries, so custom dimensions and biomes are part of the hash
+        NBTBase encoded = GeneratorSettings.a
+            .encodeStart(RegistryWriteOps.a(DynamicOpsNBT.a, originalWorld.t()), settings)
+            .result()
+            .orElseThrow(() -> new IllegalStateException("Unable to map GeneratorOptions"));
+        return Hashing.sha256().newHasher()
+            .putString(env.name(), StandardCharsets.UTF_8)
+            .putString(status.toString(), StandardCharsets.UTF_8)
+            .putString(encoded.toString(), StandardCharsets.UTF_8)
+            .hash()
+            .asLong();
     }
 
-    private BiomeType adapt(WorldServer serverWorld, BiomeBase origBiome) {
+    static BiomeType adapt(WorldServer serverWorld, BiomeBase origBiome) {
         MinecraftKey key = serverWorld.t().d(IRegistry.aO).getKey(origBiome);
         if (key == null) {
             return null;
@@ -684,74 +1133,73 @@ private BiomeType adapt(WorldServer serverWorld, BiomeBase origBiome) {
         return BiomeTypes.get(key.toString());
     }
 
-    private void regenForWorld(Region region, Extent extent, WorldServer serverWorld, RegenOptions options) throws WorldEditException {
-        List<CompletableFuture<IChunkAccess>> chunkLoadings = submitChunkLoadTasks(region, serverWorld);
-        IAsyncTaskHandler<Runnable> executor;
-        try {
-            executor = (IAsyncTaskHandler<Runnable>) chunkProviderExecutorField.get(serverWorld.getChunkProvider());
-        } catch (IllegalAccessException e) {
-            throw new IllegalStateException("Couldn't get executor for chunk loading.", e);
-        }
-        executor.awaitTasks(() -> {
-            // bail out early if a future fails
-            if (chunkLoadings.stream().anyMatch(ftr ->
-                ftr.isDone() && Futures.getUnchecked(ftr) == null
-            )) {
-                return false;
-            }
-            return chunkLoadings.stream().allMatch(CompletableFuture::isDone);
-        });
-        Map<ChunkCoordIntPair, IChunkAccess> chunks = new HashMap<>();
-        for (CompletableFuture<IChunkAccess> future : chunkLoadings) {
+    /**
+     * Copy the part of a regenerated chunk that is inside the region.
+     *
+     * <p>If the live chunk is given, blocks and biomes that are already the
+     * same in the live chunk are skipped. Blocks with a block entity are
+     * always copied, as their contents may differ.</p>
+     */
+    private void copyChunk(Region region, Extent extent, RegenChunk_v1_17_R1 chunk, RegenOptions options,
+                           @Nullable Chunk liveChunk, RegenMetrics_v1_17_R1 metrics) throws WorldEditException {
+        long blocks = 0;
+        long blockEntities = 0;
+        BlockVector3 min = region.getMinimumPoint();
+        BlockVector3 max = region.getMaximumPoint();
+        ChunkCoordIntPair chunkPos = chunk.getPos();
+        int minX = Math.max(min.getBlockX(), chunkPos.x << 4);
+        int minZ = Math.max(min.getBlockZ(), chunkPos.z << 4);
+        int maxX = Math.min(max.getBlockX(), (chunkPos.x << 4) + 15);
+        int maxZ = Math.min(max.getBlockZ(), (chunkPos.z << 4) + 15);
+        for (int y = min.getBlockY(); y <= max.getBlockY(); y++) {
+            int sectionIndex = liveChunk == null ? -1 : liveChunk.getSectionIndex(y);
+            // outside of the live chunk's sections there's nothing to compare with, so copy everything
+            boolean compare = liveChunk != null && sectionIndex >= 0 && sectionIndex < liveChunk.getSections().length;
             @Nullable
-            IChunkAccess chunk = future.getNow(null);
-            checkState(chunk != null, "Failed to generate a chunk, regen failed.");
-            chunks.put(chunk.getPos(), chunk);
-        }
-
-        for (BlockVector3 vec : region) {
-            BlockPosition pos = new BlockPosition(vec.getBlockX(), vec.getBlockY(), vec.getBlockZ());
-            IChunkAccess chunk = chunks.get(new ChunkCoordIntPair(pos));
-            final IBlockData blockData = chunk.getType(pos);
-            int internalId = Block.getCombinedId(blockData);
-            BlockStateHolder<?> state = BlockStateIdAccess.getBlockStateById(internalId);
-            TileEntity blockEntity = chunk.getTileEntity(pos);
-            if (blockEntity != null) {
-                NBTTagCompound tag = new NBTTagCompound();
-                blockEntity.save(tag);
-                state = state.toBaseBlock(((CompoundBinaryTag) toNative(tag)));
-            }
-            extent.setBlock(vec, state.toBaseBlock());
-            if (options.shouldRegenBiomes()) {
-                BiomeStorage biomeIndex = chunk.getBiomeIndex();
-                if (biomeIndex != null) {
-                    BiomeBase origBiome = biomeIndex.getBiome(vec.getBlockX(), vec.getBlockY(), vec.getBlockZ());
-                    BiomeType adaptedBiome = adapt(serverWorld, origBiome);
-                    if (adaptedBiome != null) {
-                        extent.setBiome(vec, adaptedBiome);
+            ChunkSection liveSection = compare ? liveChunk.getSections()[sectionIndex] : null;
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    BlockVector3 vec = BlockVector3.at(x, y, z);
+                    if (!region.contains(vec)) {
+                        continue;
+                    }
+                    int stateId = chunk.getBlockStateId(x, y, z);
+                    @Nullable
+                    NBTTagCompound tag = chunk.getBlockEntity(x, y, z);
+                    if (!compare || tag != null || getCombinedId(liveSection, x, y, z) != stateId) {
+                        BlockStateHolder<?> state = BlockStateIdAccess.getBlockStateById(stateId);
+                        if (tag != null) {
+                            state = state.toBaseBlock(((CompoundBinaryTag) toNative(tag)));
+                            blockEntities++;
+                        }
+                        extent.setBlock(vec, state.toBaseBlock());
+                        blocks++;
+                    }
+                    if (options.shouldRegenBiomes()) {
+                        @Nullable
+                        BiomeType biome = chunk.getBiome(x, y, z);
+                        if (biome != null && (liveChunk == null || !biome.equals(getBiome(liveChunk, x, y, z)))) {
+                            extent.setBiome(vec, biome);
+                        }
                     }
                 }
             }
         }
+        metrics.addBlocksCopied(blocks, blockEntities);
     }
 
-    private List<CompletableFuture<IChunkAccess>> submitChunkLoadTasks(Region region, WorldServer serverWorld) {
-        ChunkProviderServer chunkManager = serverWorld.getChunkProvider();
-        List<CompletableFuture<IChunkAccess>> chunkLoadings = new ArrayList<>();
-        // Pre-gen all the chunks
-        for (BlockVector2 chunk : region.getChunks()) {
-            try {
-                //noinspection unchecked
-                chunkLoadings.add(
-                    ((CompletableFuture<Either<IChunkAccess, PlayerChunk.Failure>>)
-                        getChunkFutureMethod.invoke(chunkManager, chunk.getX(), chunk.getZ(), ChunkStatus.i, true))
-                            .thenApply(either -> either.left().orElse(null))
-                );
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                throw new IllegalStateException("Couldn't load chunk for regen.", e);
-            }
+    private static int getCombinedId(@Nullable ChunkSection section, int x, int y, int z) {
+        // a missing section is all air
+        return section == null ? 0 : Block.getCombinedId(section.getType(x & 15, y & 15, z & 15));
+    }
+
+    @Nullable
+    private static BiomeType getBiome(Chunk chunk, int x, int y, int z) {
+        BiomeStorage biomeIndex = chunk.getBiomeIndex();
+        if (biomeIndex == null) {
+            return null;
         }
-        return chunkLoadings;
+        return adapt((WorldServer) chunk.getWorld(), biomeIndex.getBiome(x, y, z));
     }
 
     private ResourceKey<WorldDimension> getWorldDimKey(Environment env) {
@@ -980,6 +1428,457 @@ public void tick() {
         }
     }
 
+    /**
+     * The encoded generator settings of a world, along with where the seeds
+     * are in them. Reseeding only has to copy the encoded settings, write the
+     * seeds and parse them back, and the last few results are kept.
+     */
+    private final class SeedTemplate {
+        private static final int MAX_SEEDS = 16;
+
+        private final RegistryReadOps<NBTBase> nbtRegOps;
+        private final NBTTagCompound encoded;
+        private final List<List<String>> seedPaths = new ArrayList<>();
+        private final Map<Long, GeneratorSettings> bySeed = new LinkedHashMap<Long, GeneratorSettings>(MAX_SEEDS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, GeneratorSettings> eldest) {
+                return size() > MAX_SEEDS;
+            }
+        };
+
+        SeedTemplate(WorldServer originalWorld, GeneratorSettings originalOpts) {
+            this.nbtRegOps = createRegistryOps(originalWorld);
+            this.encoded = (NBTTagCompound) GeneratorSettings.a
+                .encodeStart(nbtRegOps, originalOpts)
+                .result()
+                .orElseThrow(() -> new IllegalStateException("Unable to map GeneratorOptions"));
+            findSeeds(encoded, new ArrayList<>());
+        }
+
+        private void findSeeds(NBTTagCompound tag, List<String> path) {
+            for (String key : tag.getKeys()) {
+                List<String> keyPath = new ArrayList<>(path);
+                keyPath.add(key);
+                if (key.equals("seed")) {
+                    seedPaths.add(keyPath);
+                } else if (tag.get(key) instanceof NBTTagCompound) {
+                    findSeeds(tag.getCompound(key), keyPath);
+                }
+            }
+        }
+
+        synchronized GeneratorSettings withSeed(long seed) {
+            GeneratorSettings settings = bySeed.get(seed);
+            if (settings == null) {
+                NBTTagCompound reseeded = encoded.clone();
+                for (List<String> path : seedPaths) {
+                    NBTTagCompound holder = reseeded;
+                    for (String key : path.subList(0, path.size() - 1)) {
+                        holder = holder.getCompound(key);
+                    }
+                    holder.setLong(path.get(path.size() - 1), seed);
+                }
+                settings = GeneratorSettings.a
+                    .parse(nbtRegOps, reseeded)
+                    .result()
+                    .orElseThrow(() -> new IllegalStateException("Unable to map GeneratorOptions"));
+                bySeed.put(seed, settings);
+            }
+            return settings;
+        }
+    }
+
+    /**
+     * A single regen, run in steps so it can be spread over several ticks.
+     *
+     * <p>Cached chunks are copied first, then the temporary world is created
+     * and the remaining chunks are copied as they finish generating.</p>
+     */
+    private final class RegenSession {
+        private final org.bukkit.World bukkitWorld;
+        private final List<Region> regions;
+        private final List<Extent> extents;
+        private final List<Set<BlockVector2>> regionChunks = new ArrayList<>();
+        private final Set<BlockVector2> allChunks = new LinkedHashSet<>();
+        private final RegenOptions options;
+        private final Set<RegenFlag_v1_17_R1> flags;
+        private final ChunkStatus targetStatus;
+        @Nullable
+        private final Consumer<RegenProgress_v1_17_R1> progressListener;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final RegenMetrics_v1_17_R1 metrics = new RegenMetrics_v1_17_R1();
+        private final String worldName = "worldeditregentempworld" + regenIds.getAndIncrement();
+
+        private RegenProgress_v1_17_R1.Phase phase = RegenProgress_v1_17_R1.Phase.WORLD_SETUP;
+        private final int totalChunks;
+        private int generatedChunks;
+        private int copiedChunks;
+
+        private WorldServer originalWorld;
+        private GeneratorSettings newOpts;
+        private long seed;
+        @Nullable
+        private RegenChunkCache_v1_17_R1.Key cacheKey;
+        private final Deque<BlockVector2> cachedChunks = new ArrayDeque<>();
+        private final Set<BlockVector2> chunks = new HashSet<>();
+        private final Deque<RegenChunk_v1_17_R1> copyQueue = new ArrayDeque<>();
+        private final List<CompletableFuture<Void>> cacheWrites = new ArrayList<>();
+
+        @Nullable
+        private Path tempDir;
+        @Nullable
+        private Convertable.ConversionSession conversionSession;
+        @Nullable
+        private ExecutorService workers;
+        @Nullable
+        private WorldServer freshWorld;
+        @Nullable
+        private RegenScheduler_v1_17_R1 scheduler;
+
+        RegenSession(org.bukkit.World bukkitWorld, List<Region> regions, List<Extent> extents, RegenOptions options,
+                     Set<RegenFlag_v1_17_R1> flags, @Nullable Consumer<RegenProgress_v1_17_R1> progressListener) {
+            checkArgument(regions.size() == extents.size(), "There must be one extent for each region");
+            this.bukkitWorld = bukkitWorld;
+            this.regions = ImmutableList.copyOf(regions);
+            this.extents = ImmutableList.copyOf(extents);
+            for (Region region : regions) {
+                Set<BlockVector2> chunksInRegion = region.getChunks();
+                regionChunks.add(chunksInRegion);
+                allChunks.addAll(chunksInRegion);
+            }
+            this.options = options;
+            this.flags = flags.isEmpty() ? EnumSet.noneOf(RegenFlag_v1_17_R1.class) : EnumSet.copyOf(flags);
+            // carvers are the last step before decorations
+            this.targetStatus = flags.contains(RegenFlag_v1_17_R1.SKIP_DECORATIONS)
+                ? ChunkStatus.h
+                : ChunkStatus.i;
+            this.progressListener = progressListener;
+            this.totalChunks = allChunks.size();
+        }
+
+        /**
+         * Run the regen until it is done or the time is up.
+         *
+         * @param budgetNanos the time to spend
+         * @return true if the regen is done
+         * @throws Exception if the regen fails
+         */
+        boolean step(long budgetNanos) throws Exception {
+            long start = System.nanoTime();
+            // generated chunks are copied in between generating more, so a step can make progress in both phases
+            Set<RegenProgress_v1_17_R1.Phase> progressed = EnumSet.noneOf(RegenProgress_v1_17_R1.Phase.class);
+            do {
+                long taskStart = System.nanoTime();
+                RegenMetrics_v1_17_R1.Phase timed;
+                switch (phase) {
+                    case WORLD_SETUP:
+                        progressed.add(RegenProgress_v1_17_R1.Phase.WORLD_SETUP);
+                        if (originalWorld == null) {
+                            prepare();
+                            timed = RegenMetrics_v1_17_R1.Phase.SETTINGS;
+                        } else {
+                            createWorld();
+                            timed = RegenMetrics_v1_17_R1.Phase.WORLD_CREATION;
+                            phase = RegenProgress_v1_17_R1.Phase.GENERATION;
+                        }
+                        break;
+                    case COPY:
+                        progressed.add(RegenProgress_v1_17_R1.Phase.COPY);
+                        copyCached();
+                        timed = RegenMetrics_v1_17_R1.Phase.COPY;
+                        break;
+                    case GENERATION:
+                        if (!copyQueue.isEmpty()) {
+                            RegenChunk_v1_17_R1 chunk = copyQueue.poll();
+                            copy(chunk);
+                            scheduler.release(chunk.getPos());
+                            progressed.add(RegenProgress_v1_17_R1.Phase.COPY);
+                            timed = RegenMetrics_v1_17_R1.Phase.COPY;
+                        } else if (scheduler.isDone()) {
+                            future.complete(true);
+                            timed = RegenMetrics_v1_17_R1.Phase.GENERATION;
+                        } else {
+                            long remaining = budgetNanos - (System.nanoTime() - start);
+                            generate(scheduler.poll(Math.max(0, remaining)));
+                            progressed.add(RegenProgress_v1_17_R1.Phase.GENERATION);
+                            timed = RegenMetrics_v1_17_R1.Phase.GENERATION;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown phase " + phase);
+                }
+                metrics.addTime(timed, System.nanoTime() - taskStart);
+                if (future.isDone()) {
+                    break;
+                }
+            } while (System.nanoTime() - start < budgetNanos);
+            if (progressListener != null) {
+                if (progressed.isEmpty()) {
+                    progressed.add(phase);
+                }
+                for (RegenProgress_v1_17_R1.Phase progressedPhase : progressed) {
+                    progressListener.accept(
+                        new RegenProgress_v1_17_R1(progressedPhase, totalChunks, generatedChunks, copiedChunks));
+                }
+            }
+            return future.isDone();
+        }
+
+        private void prepare() {
+            originalWorld = ((CraftWorld) bukkitWorld).getHandle();
+            GeneratorSettings originalOpts = originalWorld.E.getGeneratorSettings();
+
+            seed = options.getSeed().orElse(originalWorld.getSeed());
+            newOpts = options.getSeed().isPresent()
+                ? replaceSeed(originalWorld, seed, originalOpts)
+                : originalOpts;
+            if (flags.contains(RegenFlag_v1_17_R1.SKIP_STRUCTURES)) {
+                newOpts = disableStructures(originalWorld, newOpts);
+            }
+
+            // Plugin generators don't have to be deterministic, so only vanilla generation is cached
+            if (regenCache != null && bukkitWorld.getGenerator() == null) {
+                cacheKey = new RegenChunkCache_v1_17_R1.Key(CraftMagicNumbers.INSTANCE.getDataVersion(),
+                    hashGeneratorSettings(originalWorld, newOpts, bukkitWorld.getEnvironment(), targetStatus),
+                    seed, 0, 0);
+            }
+            for (BlockVector2 chunk : allChunks) {
+                if (cacheKey != null && regenCache.contains(cacheKey.at(chunk.getX(), chunk.getZ()))) {
+                    cachedChunks.add(chunk);
+                } else {
+                    chunks.add(chunk);
+                }
+            }
+            if (!cachedChunks.isEmpty()) {
+                phase = RegenProgress_v1_17_R1.Phase.COPY;
+            } else if (chunks.isEmpty()) {
+                future.complete(true);
+            }
+        }
+
+        private void copyCached() throws WorldEditException {
+            BlockVector2 chunk = cachedChunks.poll();
+            if (chunk != null) {
+                @Nullable
+                RegenChunk_v1_17_R1 cached = regenCache.get(cacheKey.at(chunk.getX(), chunk.getZ()));
+                if (cached == null) {
+                    // evicted since we checked
+                    chunks.add(chunk);
+                } else {
+                    metrics.addChunkFromCache();
+                    copy(cached);
+                }
+            }
+            if (cachedChunks.isEmpty()) {
+                if (chunks.isEmpty()) {
+                    future.complete(true);
+                } else {
+                    phase = RegenProgress_v1_17_R1.Phase.WORLD_SETUP;
+                }
+            }
+        }
+
+        private void copy(RegenChunk_v1_17_R1 chunk) throws WorldEditException {
+            ChunkCoordIntPair pos = chunk.getPos();
+            BlockVector2 chunkPos = BlockVector2.at(pos.x, pos.z);
+            @Nullable
+            Chunk liveChunk = null;
+            if (flags.contains(RegenFlag_v1_17_R1.ONLY_CHANGED)) {
+                liveChunk = originalWorld.getChunkAt(pos.x, pos.z);
+            }
+            for (int i = 0; i < regions.size(); i++) {
+                if (regionChunks.get(i).contains(chunkPos)) {
+                    copyChunk(regions.get(i), extents.get(i), chunk, options, liveChunk, metrics);
+                }
+            }
+            copiedChunks++;
+        }
+
+        private void createWorld() throws IOException {
+            Environment env = bukkitWorld.getEnvironment();
+            ChunkGenerator gen = bukkitWorld.getGenerator();
+
+            try {
+                Class.forName("org.spigotmc.SpigotConfig");
+                SpigotConfig.config.set("world-settings." + worldName + ".verbose", false);
+            } catch (ClassNotFoundException ignored) {}
+
+            tempDir = Files.createTempDirectory("WorldEditWorldGen");
+            Convertable convertable = Convertable.a(tempDir);
+            ResourceKey<WorldDimension> worldDimKey = getWorldDimKey(env);
+            conversionSession = convertable.c(worldName, worldDimKey);
+            //WorldDataServer levelProperties = (WorldDataServer) originalWorld.getCraftServer().getServer().getSaveData();
+            WorldDataServer originalSettings = originalWorld.E;
+
+            WorldSettings newWorldSettings = new WorldSettings(worldName,
+                originalSettings.e.getGameType(),
+                originalSettings.e.isHardcore(),
+                originalSettings.e.getDifficulty(),
+                originalSettings.e.e(),
+                originalSettings.e.getGameRules(),
+                originalSettings.e.g());
+            WorldDataServer newWorldData = new WorldDataServer(newWorldSettings, newOpts, Lifecycle.stable());
+
+            workers = RegenScheduler_v1_17_R1.createWorkerPool(REGEN_WORKER_THREADS);
+            freshWorld = new WorldServer(
+                originalWorld.getMinecraftServer(),
+                workers,
+                conversionSession, newWorldData,
+                originalWorld.getDimensionKey(),
+                originalWorld.getDimensionManager(),
+                //originalWorld.getTypeKey(),
+                new NoOpWorldLoadListener(),
+                newOpts.d().a(worldDimKey).c(),
+                originalWorld.isDebugWorld(),
+                seed,
+                ImmutableList.of(),
+                false,
+                env, gen
+            );
+
+            IAsyncTaskHandler<Runnable> executor;
+            try {
+                executor = (IAsyncTaskHandler<Runnable>) chunkProviderExecutorField.get(freshWorld.getChunkProvider());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Couldn't get executor for chunk loading.", e);
+            }
+            Set<BlockVector2> requested = chunks;
+            if (cacheKey != null) {
+                // Also generate the neighbours, so every copied chunk has all of its features and can be cached
+                requested = new HashSet<>();
+                for (BlockVector2 chunk : chunks) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        for (int dz = -1; dz <= 1; dz++) {
+                            requested.add(chunk.add(dx, dz));
+                        }
+                    }
+                }
+            }
+            scheduler = new RegenScheduler_v1_17_R1(
+                freshWorld, executor, getChunkFutureMethod, requested, targetStatus,
+                REGEN_MAX_CHUNKS_IN_FLIGHT, REGEN_MAX_HEAP_USAGE
+            );
+        }
+
+        private void generate(List<IChunkAccess> generated) {
+            for (IChunkAccess chunk : generated) {
+                metrics.addChunkGenerated();
+                ChunkCoordIntPair pos = chunk.getPos();
+                if (!chunks.contains(BlockVector2.at(pos.x, pos.z))) {
+                    // only generated for the features it spills into the chunks around it
+                    scheduler.release(pos);
+                    continue;
+                }
+                generatedChunks++;
+                if (cacheKey != null) {
+                    // only read the chunk here, compressing and writing it is left to the workers
+                    RegenChunk_v1_17_R1 snapshot = RegenChunkCache_v1_17_R1.snapshot(freshWorld, chunk);
+                    cacheWrites.add(regenCache.put(cacheKey.at(pos.x, pos.z), snapshot, workers)
+                        .exceptionally(e -> {
+                            logger.log(Level.WARNING, "Unable to cache a regenerated chunk", e);
+                            return null;
+                        }));
+                    copyQueue.add(snapshot);
+                } else {
+                    copyQueue.add(RegenChunk_v1_17_R1.of(freshWorld, chunk));
+                }
+            }
+        }
+
+        /**
+         * Drop any chunks that are still queued and remove the temporary world.
+         *
+         * @throws IOException if the temporary world can't be removed
+         */
+        void close() throws IOException {
+            long start = System.nanoTime();
+            try {
+                closeWorld();
+            } finally {
+                metrics.addTime(RegenMetrics_v1_17_R1.Phase.CLEANUP, System.nanoTime() - start);
+                metrics.addRegen();
+                regenMetrics.add(metrics);
+                if (REGEN_LOG_METRICS) {
+                    logger.info("Regen of " + totalChunks + " chunks in " + bukkitWorld.getName() + ": " + metrics);
+                }
+            }
+        }
+
+        private void closeWorld() throws IOException {
+            if (scheduler != null) {
+                scheduler.cancel();
+            }
+            copyQueue.clear();
+            try {
+                if (freshWorld != null) {
+                    freshWorld.getChunkProvider().close(false);
+                }
+            } finally {
+                if (workers != null) {
+                    workers.shutdown();
+                }
+                try {
+                    if (conversionSession != null) {
+                        conversionSession.close();
+                    }
+                } finally {
+                    try {
+                        Map<String, org.bukkit.World> map = (Map<String, org.bukkit.World>) serverWorldsField.get(Bukkit.getServer());
+                        map.remove(worldName);
+                    } catch (IllegalAccessException ignored) {
+                    }
+                    try {
+                        Class.forName("org.spigotmc.SpigotConfig");
+                        SpigotConfig.config.set("world-settings." + worldName, null);
+                    } catch (ClassNotFoundException ignored) {}
+                    if (cacheKey != null) {
+                        CompletableFuture.allOf(cacheWrites.toArray(new CompletableFuture[0])).join();
+                        regenCache.flush();
+                    }
+                    if (tempDir != null) {
+                        try (Stream<Path> files = Files.walk(tempDir)) {
+                            metrics.addTempDirBytes(files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum());
+                        }
+                        SafeFiles.tryHardToDeleteDir(tempDir);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops every queued regen when WorldEdit is disabled, as its regen task
+     * won't run anymore.
+     */
+    private final class RegenDisableListener implements Listener {
+        @EventHandler
+        public void onPluginDisable(PluginDisableEvent event) {
+            if (event.getPlugin() != WorldEditPlugin.getInstance()) {
+                return;
+            }
+            synchronized (queuedRegens) {
+                if (regenTask == null) {
+                    return;
+                }
+                regenTask.cancel();
+                regenTask = null;
+                RegenSession session;
+                while ((session = queuedRegens.poll()) != null) {
+                    session.future.completeExceptionally(new IllegalStateException("WorldEdit was disabled."));
+                }
+                if (activeRegen != null) {
+                    activeRegen.future.completeExceptionally(new IllegalStateException("WorldEdit was disabled."));
+                    try {
+                        activeRegen.close();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to clean up after a regen", e);
+                    }
+                    activeRegen = null;
+                }
+            }
+        }
+    }
+
     private static class NoOpWorldLoadListener implements WorldLoadListener {
         @Override
         public void a() {
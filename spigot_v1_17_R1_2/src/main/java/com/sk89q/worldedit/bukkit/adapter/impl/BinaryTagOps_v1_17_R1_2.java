@@ -0,0 +1,435 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.google.common.collect.Lists;
+import com.mojang.datafixers.util.Pair;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.MapLike;
+import com.sk89q.worldedit.util.nbt.BinaryTag;
+import com.sk89q.worldedit.util.nbt.BinaryTagType;
+import com.sk89q.worldedit.util.nbt.ByteArrayBinaryTag;
+import com.sk89q.worldedit.util.nbt.ByteBinaryTag;
+import com.sk89q.worldedit.util.nbt.CompoundBinaryTag;
+import com.sk89q.worldedit.util.nbt.DoubleBinaryTag;
+import com.sk89q.worldedit.util.nbt.EndBinaryTag;
+import com.sk89q.worldedit.util.nbt.FloatBinaryTag;
+import com.sk89q.worldedit.util.nbt.IntArrayBinaryTag;
+import com.sk89q.worldedit.util.nbt.IntBinaryTag;
+import com.sk89q.worldedit.util.nbt.ListBinaryTag;
+import com.sk89q.worldedit.util.nbt.LongArrayBinaryTag;
+import com.sk89q.worldedit.util.nbt.LongBinaryTag;
+import com.sk89q.worldedit.util.nbt.ShortBinaryTag;
+import com.sk89q.worldedit.util.nbt.StringBinaryTag;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * Lets DFU work on WorldEdit's tags directly, so that fixing data doesn't
+ * need to copy it to NMS tags and back.
+ *
+ * <p>Modelled after {@code DynamicOpsNBT}. Tags are immutable, so every
+ * modification returns a new tag.</p>
+ */
+final class BinaryTagOps_v1_17_R1_2 implements DynamicOps<BinaryTag> {
+
+    static final BinaryTagOps_v1_17_R1_2 INSTANCE = new BinaryTagOps_v1_17_R1_2();
+
+    private BinaryTagOps_v1_17_R1_2() {
+    }
+
+    @Override
+    public BinaryTag empty() {
+        return EndBinaryTag.get();
+    }
+
+    @Override
+    public <U> U convertTo(DynamicOps<U> outOps, BinaryTag input) {
+        if (input instanceof CompoundBinaryTag) {
+            return convertMap(outOps, input);
+        } else if (input instanceof ListBinaryTag) {
+            return convertList(outOps, input);
+        } else if (input instanceof ByteArrayBinaryTag) {
+            return outOps.createByteList(ByteBuffer.wrap(((ByteArrayBinaryTag) input).value()));
+        } else if (input instanceof IntArrayBinaryTag) {
+            return outOps.createIntList(Arrays.stream(((IntArrayBinaryTag) input).value()));
+        } else if (input instanceof LongArrayBinaryTag) {
+            return outOps.createLongList(Arrays.stream(((LongArrayBinaryTag) input).value()));
+        } else if (input instanceof StringBinaryTag) {
+            return outOps.createString(((StringBinaryTag) input).value());
+        } else if (input instanceof ByteBinaryTag) {
+            return outOps.createByte(((ByteBinaryTag) input).value());
+        } else if (input instanceof ShortBinaryTag) {
+            return outOps.createShort(((ShortBinaryTag) input).value());
+        } else if (input instanceof IntBinaryTag) {
+            return outOps.createInt(((IntBinaryTag) input).value());
+        } else if (input instanceof LongBinaryTag) {
+            return outOps.createLong(((LongBinaryTag) input).value());
+        } else if (input instanceof FloatBinaryTag) {
+            return outOps.createFloat(((FloatBinaryTag) input).value());
+        } else if (input instanceof DoubleBinaryTag) {
+            return outOps.createDouble(((DoubleBinaryTag) input).value());
+        }
+        return outOps.empty();
+    }
+
+    @Override
+    public DataResult<Number> getNumberValue(BinaryTag input) {
+        if (input instanceof ByteBinaryTag) {
+            return DataResult.success(((ByteBinaryTag) input).value());
+        } else if (input instanceof ShortBinaryTag) {
+            return DataResult.success(((ShortBinaryTag) input).value());
+        } else if (input instanceof IntBinaryTag) {
+            return DataResult.success(((IntBinaryTag) input).value());
+        } else if (input instanceof LongBinaryTag) {
+            return DataResult.success(((LongBinaryTag) input).value());
+        } else if (input instanceof FloatBinaryTag) {
+            return DataResult.success(((FloatBinaryTag) input).value());
+        } else if (input instanceof DoubleBinaryTag) {
+            return DataResult.success(((DoubleBinaryTag) input).value());
+        }
+        return DataResult.error("Not a number");
+    }
+
+    @Override
+    public BinaryTag createNumeric(Number value) {
+        return DoubleBinaryTag.of(value.doubleValue());
+    }
+
+    @Override
+    public BinaryTag createByte(byte value) {
+        return ByteBinaryTag.of(value);
+    }
+
+    @Override
+    public BinaryTag createShort(short value) {
+        return ShortBinaryTag.of(value);
+    }
+
+    @Override
+    public BinaryTag createInt(int value) {
+        return IntBinaryTag.of(value);
+    }
+
+    @Override
+    public BinaryTag createLong(long value) {
+        return LongBinaryTag.of(value);
+    }
+
+    @Override
+    public BinaryTag createFloat(float value) {
+        return FloatBinaryTag.of(value);
+    }
+
+    @Override
+    public BinaryTag createDouble(double value) {
+        return DoubleBinaryTag.of(value);
+    }
+
+    @Override
+    public BinaryTag createBoolean(boolean value) {
+        return ByteBinaryTag.of((byte) (value ? 1 : 0));
+    }
+
+    @Override
+    public DataResult<String> getStringValue(BinaryTag input) {
+        if (input instanceof StringBinaryTag) {
+            return DataResult.success(((StringBinaryTag) input).value());
+        }
+        return DataResult.error("Not a string");
+    }
+
+    @Override
+    public BinaryTag createString(String value) {
+        return StringBinaryTag.of(value);
+    }
+
+    @Override
+    public DataResult<BinaryTag> mergeToList(BinaryTag list, BinaryTag value) {
+        // like DynamicOpsNBT, an array stays an array as long as the value fits in it
+        if (list instanceof ByteArrayBinaryTag && value instanceof ByteBinaryTag) {
+            byte[] values = ((ByteArrayBinaryTag) list).value();
+            byte[] merged = Arrays.copyOf(values, values.length + 1);
+            merged[values.length] = ((ByteBinaryTag) value).value();
+            return DataResult.success(ByteArrayBinaryTag.of(merged));
+        } else if (list instanceof IntArrayBinaryTag && value instanceof IntBinaryTag) {
+            int[] values = ((IntArrayBinaryTag) list).value();
+            int[] merged = Arrays.copyOf(values, values.length + 1);
+            merged[values.length] = ((IntBinaryTag) value).value();
+            return DataResult.success(IntArrayBinaryTag.of(merged));
+        } else if (list instanceof LongArrayBinaryTag && value instanceof LongBinaryTag) {
+            long[] values = ((LongArrayBinaryTag) list).value();
+            long[] merged = Arrays.copyOf(values, values.length + 1);
+            merged[values.length] = ((LongBinaryTag) value).value();
+            return DataResult.success(LongArrayBinaryTag.of(merged));
+        }
+        return mergeToList(list, Collections.singletonList(value));
+    }
+
+    @Override
+    public DataResult<BinaryTag> mergeToList(BinaryTag list, List<BinaryTag> values) {
+        ListBinaryTag.Builder<BinaryTag> builder = ListBinaryTag.builder();
+        BinaryTagType<? extends BinaryTag> elementType;
+        if (list instanceof EndBinaryTag) {
+            elementType = null;
+        } else if (list instanceof ListBinaryTag) {
+            ListBinaryTag listTag = (ListBinaryTag) list;
+            elementType = listTag.size() > 0 ? listTag.elementType() : null;
+            listTag.forEach(builder::add);
+        } else if (list instanceof ByteArrayBinaryTag || list instanceof IntArrayBinaryTag
+            || list instanceof LongArrayBinaryTag) {
+            // a value that doesn't fit in the array turns it into a list, as in DynamicOpsNBT
+            List<BinaryTag> elements = getStream(list).result().orElseThrow(IllegalStateException::new)
+                .collect(Collectors.toList());
+            elementType = elements.isEmpty() ? null : elements.get(0).type();
+            elements.forEach(builder::add);
+        } else {
+            return DataResult.error("mergeToList called with not a list: " + list, list);
+        }
+        for (BinaryTag value : values) {
+            if (elementType == null) {
+                elementType = value.type();
+            } else if (elementType != value.type()) {
+                return DataResult.error("mergeToList called with a mismatched element type: " + value, list);
+            }
+            builder.add(value);
+        }
+        return DataResult.success(builder.build());
+    }
+
+    @Override
+    public DataResult<BinaryTag> mergeToMap(BinaryTag map, BinaryTag key, BinaryTag value) {
+        if (!(map instanceof CompoundBinaryTag) && !(map instanceof EndBinaryTag)) {
+            return DataResult.error("mergeToMap called with not a map: " + map, map);
+        }
+        if (!(key instanceof StringBinaryTag)) {
+            return DataResult.error("key is not a string: " + key, map);
+        }
+        CompoundBinaryTag compound = map instanceof CompoundBinaryTag ? (CompoundBinaryTag) map : CompoundBinaryTag.empty();
+        return DataResult.success(compound.put(((StringBinaryTag) key).value(), value));
+    }
+
+    @Override
+    public DataResult<BinaryTag> mergeToMap(BinaryTag map, Map<BinaryTag, BinaryTag> values) {
+        return mergeToMap(map, values.entrySet().stream().map(entry -> Pair.of(entry.getKey(), entry.getValue())));
+    }
+
+    @Override
+    public DataResult<BinaryTag> mergeToMap(BinaryTag map, MapLike<BinaryTag> values) {
+        return mergeToMap(map, values.entries());
+    }
+
+    /**
+     * Merge many entries into a map with a single copy of it, instead of
+     * one copy for each entry.
+     */
+    private DataResult<BinaryTag> mergeToMap(BinaryTag map, Stream<Pair<BinaryTag, BinaryTag>> entries) {
+        if (!(map instanceof CompoundBinaryTag) && !(map instanceof EndBinaryTag)) {
+            return DataResult.error("mergeToMap called with not a map: " + map, map);
+        }
+        CompoundBinaryTag.Builder builder = CompoundBinaryTag.builder();
+        if (map instanceof CompoundBinaryTag) {
+            CompoundBinaryTag compound = (CompoundBinaryTag) map;
+            for (String key : compound.keySet()) {
+                builder.put(key, compound.get(key));
+            }
+        }
+        List<BinaryTag> badKeys = new ArrayList<>();
+        entries.forEach(entry -> {
+            if (entry.getFirst() instanceof StringBinaryTag) {
+                builder.put(((StringBinaryTag) entry.getFirst()).value(), entry.getSecond());
+            } else {
+                badKeys.add(entry.getFirst());
+            }
+        });
+        if (!badKeys.isEmpty()) {
+            return DataResult.error("some keys are not strings: " + badKeys, builder.build());
+        }
+        return DataResult.success(builder.build());
+    }
+
+    @Override
+    public DataResult<Stream<Pair<BinaryTag, BinaryTag>>> getMapValues(BinaryTag input) {
+        if (!(input instanceof CompoundBinaryTag)) {
+            return DataResult.error("Not a map: " + input);
+        }
+        CompoundBinaryTag compound = (CompoundBinaryTag) input;
+        return DataResult.success(compound.keySet().stream()
+            .map(key -> Pair.of(createString(key), compound.get(key))));
+    }
+
+    @Override
+    public DataResult<Consumer<BiConsumer<BinaryTag, BinaryTag>>> getMapEntries(BinaryTag input) {
+        if (!(input instanceof CompoundBinaryTag)) {
+            return DataResult.error("Not a map: " + input);
+        }
+        CompoundBinaryTag compound = (CompoundBinaryTag) input;
+        return DataResult.success(consumer -> {
+            for (String key : compound.keySet()) {
+                consumer.accept(createString(key), compound.get(key));
+            }
+        });
+    }
+
+    @Override
+    public DataResult<MapLike<BinaryTag>> getMap(BinaryTag input) {
+        if (!(input instanceof CompoundBinaryTag)) {
+            return DataResult.error("Not a map: " + input);
+        }
+        CompoundBinaryTag compound = (CompoundBinaryTag) input;
+        // look entries up in the tag itself, instead of collecting them into a new map first
+        return DataResult.success(new MapLike<BinaryTag>() {
+            @Nullable
+            @Override
+            public BinaryTag get(BinaryTag key) {
+                return key instanceof StringBinaryTag ? compound.get(((StringBinaryTag) key).value()) : null;
+            }
+
+            @Nullable
+            @Override
+            public BinaryTag get(String key) {
+                return compound.get(key);
+            }
+
+            @Override
+            public Stream<Pair<BinaryTag, BinaryTag>> entries() {
+                return compound.keySet().stream().map(key -> Pair.of(createString(key), compound.get(key)));
+            }
+
+            @Override
+            public String toString() {
+                return "MapLike[" + compound + "]";
+            }
+        });
+    }
+
+    @Override
+    public BinaryTag createMap(Stream<Pair<BinaryTag, BinaryTag>> map) {
+        CompoundBinaryTag.Builder builder = CompoundBinaryTag.builder();
+        map.forEach(entry -> builder.put(((StringBinaryTag) entry.getFirst()).value(), entry.getSecond()));
+        return builder.build();
+    }
+
+    @Override
+    public DataResult<Stream<BinaryTag>> getStream(BinaryTag input) {
+        if (input instanceof ListBinaryTag) {
+            return DataResult.success(Lists.newArrayList((ListBinaryTag) input).stream());
+        } else if (input instanceof ByteArrayBinaryTag) {
+            byte[] values = ((ByteArrayBinaryTag) input).value();
+            return DataResult.success(IntStream.range(0, values.length).mapToObj(i -> createByte(values[i])));
+        } else if (input instanceof IntArrayBinaryTag) {
+            return DataResult.success(Arrays.stream(((IntArrayBinaryTag) input).value()).mapToObj(this::createInt));
+        } else if (input instanceof LongArrayBinaryTag) {
+            return DataResult.success(Arrays.stream(((LongArrayBinaryTag) input).value()).mapToObj(this::createLong));
+        }
+        return DataResult.error("Not a list");
+    }
+
+    @Override
+    public BinaryTag createList(Stream<BinaryTag> input) {
+        List<BinaryTag> values = input.collect(Collectors.toList());
+        if (values.isEmpty()) {
+            return ListBinaryTag.empty();
+        }
+        // match DynamicOpsNBT, which turns lists of numbers into arrays where it can
+        BinaryTag first = values.get(0);
+        if (first instanceof ByteBinaryTag && values.stream().allMatch(ByteBinaryTag.class::isInstance)) {
+            byte[] bytes = new byte[values.size()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = ((ByteBinaryTag) values.get(i)).value();
+            }
+            return ByteArrayBinaryTag.of(bytes);
+        } else if (first instanceof IntBinaryTag && values.stream().allMatch(IntBinaryTag.class::isInstance)) {
+            return IntArrayBinaryTag.of(values.stream().mapToInt(tag -> ((IntBinaryTag) tag).value()).toArray());
+        } else if (first instanceof LongBinaryTag && values.stream().allMatch(LongBinaryTag.class::isInstance)) {
+            return LongArrayBinaryTag.of(values.stream().mapToLong(tag -> ((LongBinaryTag) tag).value()).toArray());
+        }
+        ListBinaryTag.Builder<BinaryTag> builder = ListBinaryTag.builder();
+        values.forEach(builder::add);
+        return builder.build();
+    }
+
+    @Override
+    public DataResult<ByteBuffer> getByteBuffer(BinaryTag input) {
+        if (input instanceof ByteArrayBinaryTag) {
+            return DataResult.success(ByteBuffer.wrap(((ByteArrayBinaryTag) input).value()));
+        }
+        return DynamicOps.super.getByteBuffer(input);
+    }
+
+    @Override
+    public BinaryTag createByteList(ByteBuffer input) {
+        byte[] bytes = new byte[input.remaining()];
+        input.duplicate().get(bytes);
+        return ByteArrayBinaryTag.of(bytes);
+    }
+
+    @Override
+    public DataResult<IntStream> getIntStream(BinaryTag input) {
+        if (input instanceof IntArrayBinaryTag) {
+            return DataResult.success(Arrays.stream(((IntArrayBinaryTag) input).value()));
+        }
+        return DynamicOps.super.getIntStream(input);
+    }
+
+    @Override
+    public BinaryTag createIntList(IntStream input) {
+        return IntArrayBinaryTag.of(input.toArray());
+    }
+
+    @Override
+    public DataResult<LongStream> getLongStream(BinaryTag input) {
+        if (input instanceof LongArrayBinaryTag) {
+            return DataResult.success(Arrays.stream(((LongArrayBinaryTag) input).value()));
+        }
+        return DynamicOps.super.getLongStream(input);
+    }
+
+    @Override
+    public BinaryTag createLongList(LongStream input) {
+        return LongArrayBinaryTag.of(input.toArray());
+    }
+
+    @Override
+    public BinaryTag remove(BinaryTag input, String key) {
+        if (input instanceof CompoundBinaryTag) {
+            return ((CompoundBinaryTag) input).remove(key);
+        }
+        return input;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryTag";
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and counters of regens.
+ *
+ * <p>The adapter keeps a running total over every regen, see
+ * {@link Spigot_v1_17_R1_2#getRegenMetrics()}.</p>
+ */
+public final class RegenMetrics_v1_17_R1_2 {
+
+    /**
+     * The parts of a regen that are timed.
+     */
+    public enum Phase {
+        /**
+         * Reading and re-encoding the world's generator settings.
+         */
+        SETTINGS,
+        /**
+         * Creating the temporary world.
+         */
+        WORLD_CREATION,
+        /**
+         * Generating chunks, including storing them in the regen cache.
+         */
+        GENERATION,
+        /**
+         * Copying blocks into the extent.
+         */
+        COPY,
+        /**
+         * Closing the temporary world and deleting its files.
+         */
+        CLEANUP
+    }
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long regens;
+    private long chunksGenerated;
+    private long chunksFromCache;
+    private long blocksCopied;
+    private long blockEntitiesCopied;
+    private long tempDirBytes;
+
+    RegenMetrics_v1_17_R1_2() {
+    }
+
+    synchronized void addTime(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    synchronized void addRegen() {
+        regens++;
+    }
+
+    synchronized void addChunkGenerated() {
+        chunksGenerated++;
+    }
+
+    synchronized void addChunkFromCache() {
+        chunksFromCache++;
+    }
+
+    synchronized void addBlocksCopied(long blocks, long blockEntities) {
+        blocksCopied += blocks;
+        blockEntitiesCopied += blockEntities;
+    }
+
+    synchronized void addTempDirBytes(long bytes) {
+        tempDirBytes += bytes;
+    }
+
+    /**
+     * Add the metrics of another regen to these.
+     *
+     * @param other the other metrics
+     */
+    void add(RegenMetrics_v1_17_R1_2 other) {
+        RegenMetrics_v1_17_R1_2 snapshot = other.copy();
+        synchronized (this) {
+            for (int i = 0; i < phaseNanos.length; i++) {
+                phaseNanos[i] += snapshot.phaseNanos[i];
+            }
+            regens += snapshot.regens;
+            chunksGenerated += snapshot.chunksGenerated;
+            chunksFromCache += snapshot.chunksFromCache;
+            blocksCopied += snapshot.blocksCopied;
+            blockEntitiesCopied += snapshot.blockEntitiesCopied;
+            tempDirBytes += snapshot.tempDirBytes;
+        }
+    }
+
+    /**
+     * Copy these metrics.
+     *
+     * @return the copy
+     */
+    public synchronized RegenMetrics_v1_17_R1_2 copy() {
+        RegenMetrics_v1_17_R1_2 copy = new RegenMetrics_v1_17_R1_2();
+        System.arraycopy(phaseNanos, 0, copy.phaseNanos, 0, phaseNanos.length);
+        copy.regens = regens;
+        copy.chunksGenerated = chunksGenerated;
+        copy.chunksFromCache = chunksFromCache;
+        copy.blocksCopied = blocksCopied;
+        copy.blockEntitiesCopied = blockEntitiesCopied;
+        copy.tempDirBytes = tempDirBytes;
+        return copy;
+    }
+
+    /**
+     * Get the time spent in a phase.
+     *
+     * @param phase the phase
+     * @param unit the unit of the returned time
+     * @return the time spent
+     */
+    public synchronized long getTime(Phase phase, TimeUnit unit) {
+        return unit.convert(phaseNanos[phase.ordinal()], TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the number of regens.
+     *
+     * @return the number of regens
+     */
+    public synchronized long getRegens() {
+        return regens;
+    }
+
+    /**
+     * Get the number of chunks generated in temporary worlds. Neighbouring
+     * chunks that were only generated to complete a copied chunk are counted.
+     *
+     * @return the number of chunks generated
+     */
+    public synchronized long getChunksGenerated() {
+        return chunksGenerated;
+    }
+
+    /**
+     * Get the number of chunks read from the regen cache.
+     *
+     * @return the number of cached chunks
+     */
+    public synchronized long getChunksFromCache() {
+        return chunksFromCache;
+    }
+
+    /**
+     * Get the number of blocks written to extents.
+     *
+     * @return the number of blocks copied
+     */
+    public synchronized long getBlocksCopied() {
+        return blocksCopied;
+    }
+
+    /**
+     * Get the number of block entities converted and written to extents.
+     *
+     * @return the number of block entities copied
+     */
+    public synchronized long getBlockEntitiesCopied() {
+        return blockEntitiesCopied;
+    }
+
+    /**
+     * Get the number of bytes the temporary worlds wrote to disk.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getTempDirBytes() {
+        return tempDirBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            builder.append(phase.name().toLowerCase()).append('=')
+                .append(TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()])).append("ms, ");
+        }
+        return builder
+            .append("chunksGenerated=").append(chunksGenerated)
+            .append(", chunksFromCache=").append(chunksFromCache)
+            .append(", blocksCopied=").append(blocksCopied)
+            .append(", blockEntitiesCopied=").append(blockEntitiesCopied)
+            .append(", tempDirBytes=").append(tempDirBytes)
+            .toString();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * WorldEdit, a Minecraft world manipulation toolkit
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) WorldEdit team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldedit.bukkit.adapter.impl;
+
+import com.mojang.serialization.Dynamic;
+import com.sk89q.worldedit.util.nbt.BinaryTag;
+import com.sk89q.worldedit.util.nbt.CompoundBinaryTag;
+import com.sk89q.worldedit.world.DataFixer.FixType;
+import com.sk89q.worldedit.world.DataFixer.FixTypes;
+import net.minecraft.nbt.DynamicOpsNBT;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTCompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Upgrades Sponge schematics to the data version of this server jar without
+ * a running server.
+ *
+ * <p>Only the server jar and WorldEdit need to be on the classpath. Run with
+ * {@code <input directory> <output directory> [threads]}.</p>
+ *
+ * <p>Version 1 schematics are written back as version 2, as WorldEdit reads
+ * version 1 as 1.13.2 data whatever data version it has. Legacy MCEdit
+ * schematics are left alone, they don't carry anything the data fixer can
+ * work with without WorldEdit's legacy block tables.</p>
+ */
+public final class SchematicUpgrader_v1_17_R1_2 {
+
+    private static final Logger LOGGER = LogManager.getLogger(SchematicUpgrader_v1_17_R1_2.class);
+    // Sponge schematics before version 2 had no data version, WorldEdit assumes 1.13.2
+    private static final int SPONGE_V1_DATA_VERSION = 1631;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: <input directory> <output directory> [threads]");
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int upgraded = upgradeDirectory(Paths.get(args[0]), Paths.get(args[1]), threads);
+        LOGGER.info("Upgraded " + upgraded + " schematics");
+    }
+
+    /**
+     * Upgrade every Sponge schematic in a directory, in parallel.
+     *
+     * <p>Schematics that fail to upgrade are logged and skipped.</p>
+     *
+     * @param input the directory to read schematics from
+     * @param output the directory to write the upgraded schematics to
+     * @param threads the number of schematics to upgrade at once
+     * @return the number of schematics upgraded
+     * @throws IOException if the input directory can't be listed
+     * @throws InterruptedException if interrupted while waiting for the upgrades
+     */
+    public static int upgradeDirectory(Path input, Path output, int threads) throws IOException, InterruptedException {
+        DataConverters_1_17_R1_2.createHeadless();
+        Files.createDirectories(output);
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(input)) {
+            files = stream.filter(file -> file.getFileName().toString().endsWith(".schem")).collect(Collectors.toList());
+        }
+
+        AtomicInteger upgraded = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            pool.submit(() -> files.parallelStream().forEach(file -> {
+                try {
+                    upgradeFile(file, output.resolve(file.getFileName()));
+                    upgraded.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Failed to upgrade " + file, e);
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to upgrade schematics", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return upgraded.get();
+    }
+
+    private static void upgradeFile(Path from, Path to) throws IOException {
+        NBTTagCompound root;
+        try (InputStream in = Files.newInputStream(from)) {
+            root = NBTCompressedStreamTools.a(in);
+        }
+        upgrade(root);
+        // write it out in one go, so a failure doesn't leave half a schematic behind
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NBTCompressedStreamTools.a(root, bytes);
+        try (OutputStream out = Files.newOutputStream(to)) {
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Upgrade a Sponge schematic to the current data version, in place.
+     *
+     * @param root the root tag of the schematic
+     */
+    static void upgrade(NBTTagCompound root) {
+        // version 3 nests the schematic in the root tag
+        NBTTagCompound schematic = root.hasKeyOfType("Schematic", 10) ? root.getCompound("Schematic") : root;
+        int version = schematic.getInt("Version");
+        int srcVer = version >= 2 ? schematic.getInt("DataVersion") : SPONGE_V1_DATA_VERSION;
+        int targetVer = DataConverters_1_17_R1_2.getTargetDataVersion();
+        if (srcVer >= targetVer) {
+            return;
+        }
+        DataConverters_1_17_R1_2 converters = DataConverters_1_17_R1_2.INSTANCE;
+
+        if (version >= 3) {
+            NBTTagCompound blocks = schematic.getCompound("Blocks");
+            fixPalette(blocks, "Palette", "Data",
+                state -> converters.fixUp(FixTypes.BLOCK_STATE, state, srcVer));
+            fixBlockEntities(blocks.getList("BlockEntities", 10), srcVer, true);
+            NBTTagCompound biomes = schematic.getCompound("Biomes");
+            fixPalette(biomes, "Palette", "Data",
+                biome -> converters.fixUp(FixTypes.BIOME, biome, srcVer));
+        } else {
+            fixPalette(schematic, "Palette", "BlockData",
+                state -> converters.fixUp(FixTypes.BLOCK_STATE, state, srcVer));
+            NBTTagList blockEntities = schematic.getList(version == 1 ? "TileEntities" : "BlockEntities", 10);
+            fixBlockEntities(blockEntities, srcVer, false);
+            fixPalette(schematic, "BiomePalette", "BiomeData",
+                biome -> converters.fixUp(FixTypes.BIOME, biome, srcVer));
+            if (version == 1) {
+                schematic.remove("TileEntities");
+                schematic.set("BlockEntities", blockEntities);
+                schematic.setInt("Version", 2);
+            }
+        }
+        fixEntities(schematic.getList("Entities", 10), srcVer, version >= 3);
+        schematic.setInt("DataVersion", targetVer);
+    }
+
+    private static void fixPalette(NBTTagCompound parent, String paletteKey, String dataKey, Function<String, String> fixer) {
+        if (!parent.hasKeyOfType(paletteKey, 10)) {
+            return;
+        }
+        NBTTagCompound palette = parent.getCompound(paletteKey);
+        NBTTagCompound fixedPalette = new NBTTagCompound();
+        Map<Integer, Integer> remapped = new HashMap<>();
+        for (String key : palette.getKeys()) {
+            String fixed = fixer.apply(key);
+            int index = palette.getInt(key);
+            if (fixedPalette.hasKeyOfType(fixed, 99)) {
+                // two old entries turned into the same new one, so the data has to point at just one of them
+                remapped.put(index, fixedPalette.getInt(fixed));
+            } else {
+                fixedPalette.setInt(fixed, index);
+            }
+        }
+        parent.set(paletteKey, fixedPalette);
+        if (!remapped.isEmpty() && parent.hasKeyOfType(dataKey, 7)) {
+            parent.setByteArray(dataKey, remapVarInts(parent.getByteArray(dataKey), remapped));
+        }
+    }
+
+    private static byte[] remapVarInts(byte[] data, Map<Integer, Integer> remapped) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        int i = 0;
+        while (i < data.length) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[i++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            value = remapped.getOrDefault(value, value);
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+
+    private static void fixBlockEntities(NBTTagList blockEntities, int srcVer, boolean nestedData) {
+        for (int i = 0; i < blockEntities.size(); i++) {
+            NBTTagCompound blockEntity = blockEntities.getCompound(i);
+            int[] pos = blockEntity.getIntArray("Pos");
+            NBTTagCompound tag = nestedData ? blockEntity.getCompound("Data").clone() : withoutSpongeKeys(blockEntity);
+            tag.setString("id", blockEntity.getString("Id"));
+            if (pos.length == 3) {
+                tag.setInt("x", pos[0]);
+                tag.setInt("y", pos[1]);
+                tag.setInt("z", pos[2]);
+            }
+            NBTTagCompound fixed = fixTag(FixTypes.BLOCK_ENTITY, tag, srcVer);
+            String id = fixed.getString("id");
+            fixed.remove("id");
+            fixed.remove("x");
+            fixed.remove("y");
+            fixed.remove("z");
+            blockEntities.set(i, toSponge(blockEntity, fixed, id, nestedData));
+        }
+    }
+
+    private static void fixEntities(NBTTagList entities, int srcVer, boolean nestedData) {
+        for (int i = 0; i < entities.size(); i++) {
+            NBTTagCompound entity = entities.getCompound(i);
+            NBTTagCompound tag = nestedData ? entity.getCompound("Data").clone() : withoutSpongeKeys(entity);
+            tag.setString("id", entity.getString("Id"));
+            if (!nestedData && entity.hasKeyOfType("Pos", 9)) {
+                // version 2 keeps the entity's own position in Pos
+                tag.set("Pos", entity.get("Pos").clone());
+            }
+            NBTTagCompound fixed = fixTag(FixTypes.ENTITY, tag, srcVer);
+            String id = fixed.getString("id");
+            fixed.remove("id");
+            fixed.remove("Pos");
+            entities.set(i, toSponge(entity, fixed, id, nestedData));
+        }
+    }
+
+    /**
+     * Fix a tag through the data fixer, so it is limited and measured like
+     * any other fix.
+     */
+    private static NBTTagCompound fixTag(FixType<CompoundBinaryTag> type, NBTTagCompound tag, int srcVer) {
+        CompoundBinaryTag original = (CompoundBinaryTag) new Dynamic<NBTBase>(DynamicOpsNBT.a, tag)
+            .convert(BinaryTagOps_v1_17_R1_2.INSTANCE).getValue();
+        CompoundBinaryTag fixed = DataConverters_1_17_R1_2.INSTANCE.fixUp(type, original, srcVer);
+        return (NBTTagCompound) new Dynamic<BinaryTag>(BinaryTagOps_v1_17_R1_2.INSTANCE, fixed)
+            .convert(DynamicOpsNBT.a).getValue();
+    }
+
+    private static NBTTagCompound withoutSpongeKeys(NBTTagCompound spongeTag) {
+        NBTTagCompound tag = spongeTag.clone();
+        tag.remove("Id");
+        tag.remove("Pos");
+        // version 1 block entities have this, version 2 ones don't
+        tag.remove("ContentVersion");
+        return tag;
+    }
+
+    private static NBTTagCompound toSponge(NBTTagCompound original, NBTTagCompound fixed, String id, boolean nestedData) {
+        NBTTagCompound spongeTag;
+        if (nestedData) {
+            spongeTag = original.clone();
+            spongeTag.set("Data", fixed);
+        } else {
+            spongeTag = fixed;
+            NBTBase pos = original.get("Pos");
+            if (pos != null) {
+                spongeTag.set("Pos", pos);
+            }
+        }
+        spongeTag.setString("Id", id);
+        return spongeTag;
+    }
+
+    private SchematicUpgrader_v1_17_R1_2() {
+    }
+}